@@ -1,8 +1,19 @@
 package common.api;
 
-/** Represents a cell's location in the tabular. */
+/**
+ * Represents a cell's location in the tabular.
+ *
+ * <p>A location made of column letters followed by a row number is packed into a single long,
+ * holding the column in the high half and the row number as written in the low half, so comparing
+ * and hashing locations never touches their text. Anything else is kept as normalized text.
+ */
 public final class CellLocation {
-  private final String representation;
+  private static final int NOT_PACKED = 0;
+
+  // (column + 1) << 32 | row number, or NOT_PACKED for locations kept as text.
+  private final long packed;
+  // The normalized text; computed on first use for packed locations.
+  private String representation;
 
   /**
    * Create a cell location from its string representation.
@@ -13,7 +24,10 @@ public final class CellLocation {
     if (input == null) {
       throw new NullPointerException("input cannot be null");
     }
-    this.representation = input.toLowerCase().trim();
+    this.packed = parse(input);
+    if (packed == NOT_PACKED) {
+      this.representation = input.toLowerCase().trim();
+    }
   }
 
   /**
@@ -24,25 +38,110 @@ public final class CellLocation {
    */
   public CellLocation(int row, int column) {
     assert column >= 0 && row >= 0;
-    representation = getColumnName(column) + (row + 1);
+    packed = pack(row + 1, column);
+  }
+
+  private static long pack(long rowNumber, long column) {
+    return (column + 1) << 32 | rowNumber;
   }
 
+  /**
+   * Reads column letters, in either case, followed by a row number without leading zeros, ignoring
+   * surrounding whitespace.
+   *
+   * @return the packed location, or NOT_PACKED if the input has any other form.
+   */
+  private static long parse(String input) {
+    int start = 0;
+    int end = input.length();
+    while (start < end && input.charAt(start) <= ' ') {
+      start++;
+    }
+    while (end > start && input.charAt(end - 1) <= ' ') {
+      end--;
+    }
+    int i = start;
+    long column = 0;
+    for (; i < end; i++) {
+      char c = input.charAt(i);
+      if (c >= 'A' && c <= 'Z') {
+        c += 'a' - 'A';
+      }
+      if (c < 'a' || c > 'z') {
+        break;
+      }
+      column = column * 26 + (c - 'a' + 1);
+      if (column > Integer.MAX_VALUE) {
+        return NOT_PACKED;
+      }
+    }
+    if (i == start || i == end || (input.charAt(i) == '0' && end - i > 1)) {
+      return NOT_PACKED;
+    }
+    long row = 0;
+    for (; i < end; i++) {
+      char c = input.charAt(i);
+      if (c < '0' || c > '9') {
+        return NOT_PACKED;
+      }
+      row = row * 10 + (c - '0');
+      if (row > Integer.MAX_VALUE) {
+        return NOT_PACKED;
+      }
+    }
+    return pack(row, column - 1);
+  }
+
+  /**
+   * Gets the letters naming a zero-indexed column: a to z, then aa to az, ba and so on.
+   */
   public static String getColumnName(int column) {
     StringBuilder sb = new StringBuilder();
+    column++;
     do {
+      column--;
       sb.append((char) ('a' + column % 26));
       column = column / 26;
     } while (column > 0);
-    return sb.toString();
+    return sb.reverse().toString();
+  }
+
+  /**
+   * Gets the zero-indexed row of this location.
+   *
+   * @return the row, or -1 if this location is not made of column letters followed by a positive
+   *     row number that fits in an int.
+   */
+  public int getRow() {
+    return packed == NOT_PACKED ? -1 : (int) packed - 1;
+  }
+
+  /**
+   * Gets the zero-indexed column of this location.
+   *
+   * @return the column, or -1 if this location is not made of column letters followed by a row
+   *     number, or its letters name a column past the range of an int.
+   */
+  public int getColumn() {
+    return packed == NOT_PACKED ? -1 : (int) (packed >>> 32) - 1;
   }
 
   public String toString() {
-    return representation;
+    String s = representation;
+    if (s == null) {
+      s = getColumnName(getColumn()) + (int) packed;
+      representation = s;
+    }
+    return s;
   }
 
   @Override
   public int hashCode() {
-    return representation.hashCode();
+    if (packed == NOT_PACKED) {
+      return representation.hashCode();
+    }
+    // Rows vary fastest, so spread them over the high bits as well.
+    return (int) packed * 0x9e3779b9 ^ (int) (packed >>> 32);
   }
 
   @Override
@@ -57,7 +156,9 @@ public final class CellLocation {
       return false;
     }
     CellLocation other = (CellLocation) obj;
-
+    if (packed != NOT_PACKED || other.packed != NOT_PACKED) {
+      return packed == other.packed;
+    }
     return representation.equals(other.representation);
   }
 }
@@ -1,37 +1,63 @@
 package common.lexer;
 
 import common.api.CellLocation;
-import java.io.IOException;
-import java.io.PushbackReader;
-import java.io.StringReader;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.regex.Pattern;
 
+/**
+ * Splits a formula into tokens.
+ *
+ * <p>The lexer scans the input in place, one index at a time, and classifies characters directly
+ * rather than through readers or regular expressions. Cell locations are read straight into their
+ * row and column, and numbers into their value whenever that can be done exactly, so a word only
+ * becomes a string when it is an identifier or is reported as invalid. Tokens without a value are
+ * shared, as tokens are immutable.
+ */
 public class Lexer {
-  private static final Pattern CELL_LOCATION_REGEX = Pattern.compile("^[a-zA-Z]+[0-9]+$");
-  private static final Pattern NUMBER_REGEX =
-      Pattern.compile("[-+]?[0-9]*\\.?[0-9]+([eE][-+]?[0-9]+)?");
+  private static final Token[] SYMBOLS = new Token[128];
+  // Powers of ten that are exact as doubles, for converting short decimals without rounding twice.
+  private static final double[] EXACT_POWERS_OF_TEN = new double[23];
 
-  private final PushbackReader reader;
+  static {
+    for (Token.Kind kind : Token.Kind.values()) {
+      if (!kind.getSymbol().isEmpty()) {
+        SYMBOLS[kind.getSymbol().charAt(0)] = new Token(kind);
+      }
+    }
+    EXACT_POWERS_OF_TEN[0] = 1;
+    for (int i = 1; i < EXACT_POWERS_OF_TEN.length; i++) {
+      EXACT_POWERS_OF_TEN[i] = EXACT_POWERS_OF_TEN[i - 1] * 10;
+    }
+  }
 
-  public Lexer(String input) {
-    reader = new PushbackReader(new StringReader(input), 1);
+  private final CharSequence input;
+  private final int end;
+  private int position;
+
+  public Lexer(CharSequence input) {
+    this.input = input;
+    this.end = input.length();
   }
 
   /** Tokenize an entire string into a list of tokens. */
-  public static List<Token> tokenize(String input) throws InvalidTokenException {
-    List<Token> result = new ArrayList<>();
+  public static List<Token> tokenize(CharSequence input) throws InvalidTokenException {
+    return tokenize(input, new ArrayList<>());
+  }
+
+  /**
+   * Tokenize an entire string into a buffer that is reused between calls.
+   *
+   * @param buffer The list to fill; anything already in it is removed first.
+   * @return the buffer.
+   */
+  public static List<Token> tokenize(CharSequence input, List<Token> buffer)
+      throws InvalidTokenException {
+    buffer.clear();
     Lexer lexer = new Lexer(input);
-    while (true) {
-      Token token = lexer.nextToken();
-      if (token != null) {
-        result.add(token);
-      } else {
-        break;
-      }
+    for (Token token = lexer.nextToken(); token != null; token = lexer.nextToken()) {
+      buffer.add(token);
     }
-    return result;
+    return buffer;
   }
 
   /**
@@ -40,56 +66,112 @@ public class Lexer {
    * <p>Returns null when there are no more tokens left.
    */
   public Token nextToken() throws InvalidTokenException {
-    int c;
-    do {
-      c = readChar();
-    } while (Character.isWhitespace(c));
-
-    switch (c) {
-      case -1:
-        return null;
-      case '+':
-        return new Token(Token.Kind.PLUS);
-      case '-':
-        return new Token(Token.Kind.MINUS);
-      case '*':
-        return new Token(Token.Kind.STAR);
-      case '/':
-        return new Token(Token.Kind.SLASH);
-      case '^':
-        return new Token(Token.Kind.CARET);
-      case '(':
-        return new Token(Token.Kind.LPARENTHESIS);
-      case ')':
-        return new Token(Token.Kind.RPARENTHESIS);
-      case '<':
-        return new Token(Token.Kind.LANGLE);
-      case '>':
-        return new Token(Token.Kind.RANGLE);
-      case '=':
-        return new Token(Token.Kind.EQUALS);
+    while (position < end && Character.isWhitespace(input.charAt(position))) {
+      position++;
+    }
+    if (position == end) {
+      return null;
+    }
+    char c = input.charAt(position);
+    Token symbol = c < SYMBOLS.length ? SYMBOLS[c] : null;
+    if (symbol != null) {
+      position++;
+      return symbol;
+    }
+    if (Character.isLetter(c)) {
+      return readCellLocation();
+    } else if (Character.isDigit(c)) {
+      return readNumber();
+    } else {
+      position++;
+      throw new InvalidTokenException(Character.toString(c));
+    }
+  }
 
-      default:
-        if (Character.isLetter(c)) {
-          return readCellLocation((char) c);
-        } else if (Character.isDigit(c)) {
-          return readNumber((char) c);
-        } else {
-          throw new InvalidTokenException(Character.toString((char) c));
-        }
+  /** Reads a word starting with a letter: either an identifier, or letters followed by digits. */
+  private Token readCellLocation() throws InvalidTokenException {
+    int start = position;
+    int wordEnd = endOfWord();
+    int i = start;
+    long column = 0;
+    for (; i < wordEnd && isAsciiLetter(input.charAt(i)); i++) {
+      // Once out of range the location keeps its text, so there is no need to count further.
+      if (column <= Integer.MAX_VALUE) {
+        column = column * 26 + (Character.toLowerCase(input.charAt(i)) - 'a' + 1);
+      }
+    }
+    if (i == wordEnd) {
+      return new Token(word(start, wordEnd).toLowerCase());
+    }
+    int digits = i;
+    long row = 0;
+    for (; i < wordEnd && isAsciiDigit(input.charAt(i)); i++) {
+      if (row <= Integer.MAX_VALUE) {
+        row = row * 10 + (input.charAt(i) - '0');
+      }
+    }
+    if (i == digits || i < wordEnd) {
+      throw new InvalidTokenException(word(start, wordEnd));
+    }
+    if (column > Integer.MAX_VALUE || row < 1 || row > Integer.MAX_VALUE
+        || input.charAt(digits) == '0') {
+      // Leading zeros, row 0 and out of range locations keep their text.
+      return new Token(new CellLocation(word(start, wordEnd)));
     }
+    return new Token(new CellLocation((int) row - 1, (int) column - 1));
   }
 
-  private Token readCellLocation(char initial) throws InvalidTokenException {
-    String word = readWord(initial);
-    if (!CELL_LOCATION_REGEX.matcher(word).matches()) {
-      throw new InvalidTokenException(word);
+  /**
+   * Reads a word starting with a digit as a number. Digits with an optional fraction and exponent
+   * are converted directly when the result is exact; anything else goes through
+   * {@link Double#parseDouble}, which decides whether it is a number at all.
+   */
+  private Token readNumber() throws InvalidTokenException {
+    int start = position;
+    int wordEnd = endOfWord();
+    int i = start;
+    long mantissa = 0;
+    int significant = 0;
+    int scale = 0;
+    boolean fraction = false;
+    for (; i < wordEnd; i++) {
+      char c = input.charAt(i);
+      if (c == '.' && !fraction) {
+        fraction = true;
+      } else if (isAsciiDigit(c)) {
+        if (significant > 0 || c != '0') {
+          significant++;
+        }
+        mantissa = mantissa * 10 + (c - '0');
+        scale -= fraction ? 1 : 0;
+        if (significant > 15) {
+          return parseNumber(start, wordEnd);
+        }
+      } else {
+        break;
+      }
+    }
+    if (i < wordEnd && (input.charAt(i) == 'e' || input.charAt(i) == 'E')) {
+      int exponent = 0;
+      int digits = ++i;
+      for (; i < wordEnd && isAsciiDigit(input.charAt(i)) && exponent < 1000; i++) {
+        exponent = exponent * 10 + (input.charAt(i) - '0');
+      }
+      if (i == digits) {
+        return parseNumber(start, wordEnd);
+      }
+      scale += exponent;
+    }
+    if (i < wordEnd || scale < -22 || scale > 22) {
+      return parseNumber(start, wordEnd);
     }
-    return new Token(new CellLocation(word));
+    // Both operands are exact, so the one rounding gives the same result as parseDouble.
+    return new Token(scale < 0
+        ? mantissa / EXACT_POWERS_OF_TEN[-scale] : mantissa * EXACT_POWERS_OF_TEN[scale]);
   }
 
-  private Token readNumber(char initial) throws InvalidTokenException {
-    String word = readWord(initial);
+  private Token parseNumber(int start, int wordEnd) throws InvalidTokenException {
+    String word = word(start, wordEnd);
     try {
       return new Token(Double.parseDouble(word));
     } catch (NumberFormatException e) {
@@ -97,33 +179,29 @@ public class Lexer {
     }
   }
 
-  private String readWord(char initial) {
-    StringBuffer word = new StringBuffer();
-    word.append(initial);
-
-    while (true) {
-      int c = readChar();
-      if (Character.isLetterOrDigit(c) || c == '.') {
-        word.append((char) c);
-      } else {
-        if (c != -1) {
-          try {
-            reader.unread((char) c);
-          } catch (IOException e) {
-            throw new RuntimeException();
-          }
-        }
-        break;
-      }
+  /**
+   * Moves past the letters, digits and dots of the word at the current position.
+   *
+   * @return the end of the word.
+   */
+  private int endOfWord() {
+    int i = position + 1;
+    while (i < end && (Character.isLetterOrDigit(input.charAt(i)) || input.charAt(i) == '.')) {
+      i++;
     }
-    return word.toString();
+    position = i;
+    return i;
   }
 
-  private int readChar() {
-    try {
-      return reader.read();
-    } catch (IOException e) {
-      throw new IllegalStateException("reading from string should always work!");
-    }
+  private String word(int start, int wordEnd) {
+    return input.subSequence(start, wordEnd).toString();
+  }
+
+  private static boolean isAsciiLetter(char c) {
+    return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+  }
+
+  private static boolean isAsciiDigit(char c) {
+    return c >= '0' && c <= '9';
   }
 }
@@ -1,6 +1,7 @@
 package common.lexer;
 
 import static common.lexer.Token.Kind.CELL_LOCATION;
+import static common.lexer.Token.Kind.IDENTIFIER;
 import static common.lexer.Token.Kind.NUMBER;
 
 import common.api.CellLocation;
@@ -9,31 +10,38 @@ import java.util.Objects;
 /**
  * Representation of a token from the input string.
  *
- * <p>If `kind` if NUMBER or CELL_LOCATION, then the represented value may be found respectively in
- * `numberValue` and `cellLocationValue`.
+ * <p>If `kind` if NUMBER, CELL_LOCATION or IDENTIFIER, then the represented value may be found
+ * respectively in `numberValue`, `cellLocationValue` and `identifierValue`.
  */
 public class Token {
   public final Kind kind;
   public final CellLocation cellLocationValue;
   public final double numberValue;
+  public final String identifierValue;
 
   Token(Kind kind) {
-    this(kind, null, 0);
-    assert (kind != NUMBER && kind != CELL_LOCATION);
+    this(kind, null, 0, null);
+    assert (kind != NUMBER && kind != CELL_LOCATION && kind != IDENTIFIER);
   }
 
   Token(double value) {
-    this(NUMBER, null, value);
+    this(NUMBER, null, value, null);
   }
 
   Token(CellLocation cellLocation) {
-    this(CELL_LOCATION, cellLocation, 0);
+    this(CELL_LOCATION, cellLocation, 0, null);
   }
 
-  private Token(Kind kind, CellLocation cellLocationValue, double numberValue) {
+  Token(String identifier) {
+    this(IDENTIFIER, null, 0, identifier);
+  }
+
+  private Token(
+      Kind kind, CellLocation cellLocationValue, double numberValue, String identifierValue) {
     this.kind = kind;
     this.cellLocationValue = cellLocationValue;
     this.numberValue = numberValue;
+    this.identifierValue = identifierValue;
   }
 
   @Override
@@ -43,6 +51,8 @@ public class Token {
         return "CELL(" + cellLocationValue.toString() + ")";
       case NUMBER:
         return "NUMBER(" + numberValue + ")";
+      case IDENTIFIER:
+        return "IDENTIFIER(" + identifierValue + ")";
       default:
         return kind.name();
     }
@@ -68,6 +78,8 @@ public class Token {
         return this.numberValue == other.numberValue;
       case CELL_LOCATION:
         return this.cellLocationValue.equals(other.cellLocationValue);
+      case IDENTIFIER:
+        return this.identifierValue.equals(other.identifierValue);
       default:
         return true;
     }
@@ -80,6 +92,8 @@ public class Token {
         return Objects.hash(kind, numberValue);
       case CELL_LOCATION:
         return Objects.hash(kind, cellLocationValue);
+      case IDENTIFIER:
+        return Objects.hash(kind, identifierValue);
       default:
         return Objects.hash(kind);
     }
@@ -96,8 +110,10 @@ public class Token {
     LANGLE("<"),
     RANGLE(">"),
     EQUALS("="),
+    COLON(":"),
     NUMBER(),
     CELL_LOCATION(),
+    IDENTIFIER(),
     ;
 
     private String symbol;
@@ -0,0 +1,165 @@
+package spreadsheet;
+
+import common.api.CellLocation;
+import common.api.EvaluationContext;
+import common.api.Expression;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * An aggregate function applied to a range of cells, such as {@code sum(a1:a100)}.
+ *
+ * <p>A range is not expanded into references to each of its cells: {@link #getCellReferences()}
+ * does not include it. Spreadsheets track which formulas read which ranges separately, in a
+ * {@link RangeIndex}.
+ */
+public class Aggregate implements Expression {
+
+  private final Function function;
+  private final Range range;
+
+  public Aggregate(Function function, Range range) {
+    this.function = function;
+    this.range = range;
+  }
+
+  public Function getFunction() {
+    return function;
+  }
+
+  public Range getRange() {
+    return range;
+  }
+
+  @Override
+  public double evaluate(EvaluationContext context) {
+    Tally tally = new Tally();
+    if (context instanceof Spreadsheet spreadsheet) {
+      spreadsheet.tally(range, tally);
+    } else {
+      // Without a way to tell empty cells apart, every cell of the range counts.
+      for (int row = range.getTop(); row <= range.getBottom(); row++) {
+        for (int column = range.getLeft(); column <= range.getRight(); column++) {
+          tally.add(context.getCellValue(new CellLocation(row, column)));
+        }
+      }
+    }
+    return tally.get(function);
+  }
+
+  @Override
+  public void findCellReferences(Set<CellLocation> dependencies) {
+  }
+
+  @Override
+  public Set<CellLocation> getCellReferences() {
+    return Collections.emptySet();
+  }
+
+  @Override
+  public int hashCode() {
+    return 31 * function.hashCode() + range.hashCode();
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    return obj instanceof Aggregate other && function == other.function
+        && range.equals(other.range);
+  }
+
+  @Override
+  public String toString() {
+    return function.name().toLowerCase() + "(" + range + ")";
+  }
+
+  /**
+   * Collects the ranges read by an expression.
+   *
+   * @return the ranges, in no particular order; empty for an expression without aggregates.
+   */
+  static List<Range> rangesOf(Expression expression) {
+    List<Range> ranges = new ArrayList<>();
+    for (Aggregate aggregate : aggregatesOf(expression)) {
+      ranges.add(aggregate.range);
+    }
+    return ranges;
+  }
+
+  /**
+   * Collects the aggregates in an expression.
+   *
+   * @return the aggregates, in no particular order; empty for an expression without any.
+   */
+  static List<Aggregate> aggregatesOf(Expression expression) {
+    List<Aggregate> aggregates = new ArrayList<>();
+    collectAggregates(expression, aggregates);
+    return aggregates;
+  }
+
+  private static void collectAggregates(Expression expression, List<Aggregate> aggregates) {
+    if (expression instanceof Aggregate aggregate) {
+      aggregates.add(aggregate);
+    } else if (expression instanceof BinApp application) {
+      collectAggregates(application.getLeft(), aggregates);
+      collectAggregates(application.getRight(), aggregates);
+    } else if (expression instanceof Parentheses parentheses) {
+      collectAggregates(parentheses.e, aggregates);
+    } else if (expression instanceof Formula formula) {
+      collectAggregates(formula.getBody(), aggregates);
+    } else if (expression instanceof Memo memo) {
+      collectAggregates(memo.getExpression(), aggregates);
+    }
+  }
+
+  /** The functions that can be applied to a range. */
+  public enum Function {
+    SUM, COUNT, AVERAGE, MIN, MAX;
+
+    /**
+     * @return whether the function needs the values of a range in order, rather than just their
+     *     count and sum.
+     */
+    boolean isOrdered() {
+      return this == MIN || this == MAX;
+    }
+  }
+
+  /** Accumulates the values of the non-empty cells of a range. */
+  static final class Tally {
+    private long count;
+    private double sum;
+    private double min = Double.POSITIVE_INFINITY;
+    private double max = Double.NEGATIVE_INFINITY;
+
+    void add(double value) {
+      count++;
+      sum += value;
+      min = Math.min(min, value);
+      max = Math.max(max, value);
+    }
+
+    /** Replaces the tally with one kept elsewhere; min and max only matter if count is not 0. */
+    void set(long count, double sum, double min, double max) {
+      this.count = count;
+      this.sum = sum;
+      this.min = min;
+      this.max = max;
+    }
+
+    /**
+     * @return the result of a function over the values added so far; MIN and MAX of no values are
+     *     0, and their AVERAGE is NaN.
+     */
+    double get(Function function) {
+      return switch (function) {
+        case SUM -> sum;
+        case COUNT -> count;
+        case AVERAGE -> sum / count;
+        case MIN -> count == 0 ? 0.0 : min;
+        case MAX -> count == 0 ? 0.0 : max;
+      };
+    }
+  }
+}
@@ -5,18 +5,34 @@ import common.api.EvaluationContext;
 import common.api.Expression;
 
 import java.util.HashSet;
+import java.util.Objects;
 import java.util.Set;
 
 public class BinApp implements Expression {
 
-  private BinOp operator;
-  private Expression e1;
-  private Expression e2;
+  private final BinOp operator;
+  private final Expression e1;
+  private final Expression e2;
+  // Cached so that hashing a node is constant time once its children are hashed.
+  private final int hash;
 
   public BinApp(BinOp operator, Expression e1, Expression e2) {
     this.operator = operator;
     this.e1 = e1;
     this.e2 = e2;
+    this.hash = Objects.hash(operator, e1, e2);
+  }
+
+  public BinOp getOperator() {
+    return operator;
+  }
+
+  public Expression getLeft() {
+    return e1;
+  }
+
+  public Expression getRight() {
+    return e2;
   }
 
   @Override
@@ -24,6 +40,20 @@ public class BinApp implements Expression {
     return "(" + e1.toString() + operator.toString() + e2.toString() + ")";
   }
 
+  @Override
+  public int hashCode() {
+    return hash;
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    if (this == obj) {
+      return true;
+    }
+    return obj instanceof BinApp other && hash == other.hash && operator.equals(other.operator)
+        && e1.equals(other.e1) && e2.equals(other.e2);
+  }
+
   @Override
   public double evaluate(EvaluationContext context) {
     double v1 = e1.evaluate(context);
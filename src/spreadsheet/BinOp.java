@@ -35,6 +35,16 @@ public class BinOp {
     return this.kind.getSymbol();
   }
 
+  @Override
+  public int hashCode() {
+    return kind.hashCode();
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    return obj instanceof BinOp other && kind == other.kind;
+  }
+
   enum Associativity {
     LEFT, RIGHT
   }
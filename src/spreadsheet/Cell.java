@@ -3,6 +3,7 @@ package spreadsheet;
 import common.api.BasicSpreadsheet;
 import common.api.CellLocation;
 import common.api.Expression;
+import java.lang.invoke.MethodHandle;
 import java.util.HashSet;
 import java.util.Set;
 
@@ -22,16 +23,23 @@ public class Cell {
   private final CellLocation location;
   private boolean emptyState;
   private double value;
+  // Whether the cell was empty when its value was last calculated.
+  private boolean emptyValue = true;
   private Expression expression;
+  // Only used while no Spreadsheet owns the cell; one that does keeps the edges in its graph.
   private Set<CellLocation> dependents;
-  private Set<CellLocation> dependencies;
+  private boolean dirty;
+  private int rank;
+  private int visit;
+  private MethodHandle compiled;
+  private int evaluations;
+  private int id = -1;
 
 
   Cell(BasicSpreadsheet spreadsheet, CellLocation location) {
     this.spreadsheet = spreadsheet;
     this.location = location;
-    setEmpty();
-    dependents = new HashSet<>();
+    clearExpression();
   }
 
   /**
@@ -69,17 +77,42 @@ public class Cell {
    * @throws InvalidSyntaxException if the string cannot be parsed.
    */
   public void setExpression(String input) throws InvalidSyntaxException {
-    dependencies.forEach(ref -> spreadsheet.removeDependency(location, ref));
+    setExpression(input.isEmpty() ? null : Parser.parse(input));
+  }
+
+  /**
+   * Sets the cell's expression from an already parsed tree, rewiring its dependency edges.
+   *
+   * @param parsed The new expression, or null to clear the cell.
+   */
+  void setExpression(Expression parsed) {
+    if (spreadsheet instanceof Spreadsheet owner) {
+      owner.willChange(this);
+    }
+    boolean wasPresent = !emptyState;
+    if (!emptyState) {
+      expression.getCellReferences().forEach(ref -> spreadsheet.removeDependency(location, ref));
+    }
+    compiled = null;
+    evaluations = 0;
 
-    if (input.isEmpty()) {
-      emptyState = true;
-      setEmpty();
+    if (parsed == null) {
+      clearExpression();
     } else {
-      expression = Parser.parse(input);
+      expression = parsed;
       emptyState = false;
-      dependencies = expression.getCellReferences();
-      dependencies.forEach(ref -> spreadsheet.addDependency(location, ref));
+      expression.getCellReferences().forEach(ref -> spreadsheet.addDependency(location, ref));
     }
+    if (wasPresent == emptyState && spreadsheet instanceof Spreadsheet owner) {
+      owner.valueChanged(this, wasPresent, value, !emptyState, value);
+    }
+  }
+
+  /**
+   * @return the cell's parsed expression, or null if the cell is empty.
+   */
+  Expression getParsedExpression() {
+    return emptyState ? null : expression;
   }
 
   /**
@@ -98,9 +131,19 @@ public class Cell {
    *
    * <p>DO NOT CHANGE THE SIGNATURE. The test suite depends on this.
    *
+   * <p>For a cell owned by a {@link Spreadsheet}, this adds the edge to the spreadsheet's graph.
+   *
    * @param location the location to add.
    */
   public void addDependent(CellLocation location) {
+    Spreadsheet owner = owner();
+    if (owner != null) {
+      owner.addDependency(location, this.location);
+      return;
+    }
+    if (dependents == null) {
+      dependents = new HashSet<>();
+    }
     dependents.add(location);
   }
 
@@ -109,10 +152,20 @@ public class Cell {
    *
    * <p>DO NOT CHANGE THE SIGNATURE. The test suite depends on this.
    *
+   * <p>For a cell owned by a {@link Spreadsheet}, this removes the edge from the spreadsheet's
+   * graph.
+   *
    * @param location the location to add.
    */
   public void removeDependent(CellLocation location) {
-    dependents.remove(location);
+    Spreadsheet owner = owner();
+    if (owner != null) {
+      owner.removeDependency(location, this.location);
+      return;
+    }
+    if (dependents != null) {
+      dependents.remove(location);
+    }
   }
 
   /**
@@ -132,28 +185,149 @@ public class Cell {
    * Recalculates this cell's value based on its expression.
    *
    * <p>DO NOT CHANGE THE SIGNATURE. The test suite depends on this.
+   *
+   * <p>A cell owned by a {@link Spreadsheet} is recalculated by the spreadsheet, along with its
+   * dependents, as {@link Spreadsheet#recalculate(CellLocation)} does.
    */
   public void recalculate() {
-    if (!emptyState) {
-      value = expression.evaluate(spreadsheet);
-      if (!dependents.isEmpty()) {
-        dependents.forEach(dep -> spreadsheet.recalculate(dep));
-      }
-    } else {
-      value = 0.0;
+    Spreadsheet owner = owner();
+    if (owner != null) {
+      owner.recalculate(location);
+      return;
+    }
+    evaluate();
+    if (dependents != null) {
       dependents.forEach(dep -> spreadsheet.recalculate(dep));
     }
   }
 
+  /**
+   * Recalculates this cell's value without touching its dependents.
+   *
+   * <p>Used by the {@link Recalculator}, which takes care of visiting dependents in order.
+   *
+   * @return whether the new value differs, bit for bit, from the previous one, or the cell has
+   *     become empty or stopped being empty; aggregates over ranges tell such cells apart.
+   */
+  boolean evaluate() {
+    double previous = value;
+    double next;
+    if (emptyState) {
+      next = 0.0;
+    } else if (compiled != null) {
+      next = evaluateCompiled();
+    } else {
+      next = expression.evaluate(spreadsheet);
+      if (spreadsheet instanceof Spreadsheet owner) {
+        int threshold = owner.getCompileThreshold();
+        if (threshold > 0 && ++evaluations >= threshold) {
+          compiled = ExpressionCompiler.compile(expression, owner);
+        }
+      }
+    }
+    boolean changed = Double.doubleToLongBits(next) != Double.doubleToLongBits(previous);
+    if (changed && spreadsheet instanceof Spreadsheet owner) {
+      owner.willChange(this);
+    }
+    value = next;
+    dirty = false;
+    if (changed && !emptyState && spreadsheet instanceof Spreadsheet owner) {
+      owner.valueChanged(this, true, previous, true, value);
+    }
+    changed |= emptyValue != emptyState;
+    emptyValue = emptyState;
+    return changed;
+  }
+
+  /**
+   * @return the spreadsheet whose dependency graph holds this cell, or null if there is none.
+   */
+  private Spreadsheet owner() {
+    return id >= 0 && spreadsheet instanceof Spreadsheet owner ? owner : null;
+  }
+
+  private double evaluateCompiled() {
+    try {
+      return (double) compiled.invokeExact();
+    } catch (RuntimeException | Error e) {
+      throw e;
+    } catch (Throwable t) {
+      throw new IllegalStateException(t);
+    }
+  }
+
+  /**
+   * @return whether this cell has been compiled by the {@link ExpressionCompiler}.
+   */
+  boolean isCompiled() {
+    return compiled != null;
+  }
+
+  /**
+   * @return whether this cell's value is out of date and must be evaluated before it is read.
+   */
+  boolean isDirty() {
+    return dirty;
+  }
+
+  void markDirty() {
+    dirty = true;
+  }
+
+  CellLocation getLocation() {
+    return location;
+  }
+
+  /**
+   * @return this cell's position in the spreadsheet's {@link TopologicalOrder}.
+   */
+  int getRank() {
+    return rank;
+  }
+
+  void setRank(int rank) {
+    this.rank = rank;
+  }
+
+  /**
+   * @return the number of the last {@link TopologicalOrder} search that visited this cell.
+   */
+  int getVisit() {
+    return visit;
+  }
+
+  void setVisit(int visit) {
+    this.visit = visit;
+  }
+
+  /**
+   * @return this cell's node in its spreadsheet's {@link DependencyGraph}, or -1 if it has none.
+   */
+  int getId() {
+    return id;
+  }
+
+  void setId(int id) {
+    this.id = id;
+  }
+
   public boolean getEmptyState() {
     return emptyState;
   }
 
+  /** Clears this cell's expression and resets its value to 0. */
   public void setEmpty() {
+    clearExpression();
+    value = 0.0;
+  }
+
+  /**
+   * Clears this cell's expression. Like any other expression change, the value only follows on the
+   * next recalculation, so that recalculation can tell whether it changed.
+   */
+  void clearExpression() {
     emptyState = true;
     expression = null;
-    value = 0.0;
-    dependencies = new HashSet<>();
   }
 
 }
@@ -7,17 +7,31 @@ import java.util.Set;
 
 public class CellReferences implements Expression {
 
-  private CellLocation cellLocation;
+  private final CellLocation cellLocation;
 
   public CellReferences(CellLocation cellLocation) {
     this.cellLocation = cellLocation;
   }
 
+  public CellLocation getCellLocation() {
+    return cellLocation;
+  }
+
   @Override
   public String toString() {
     return cellLocation.toString();
   }
 
+  @Override
+  public int hashCode() {
+    return cellLocation.hashCode();
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    return obj instanceof CellReferences other && cellLocation.equals(other.cellLocation);
+  }
+
   @Override
   public double evaluate(EvaluationContext context) {
     return context.getCellValue(cellLocation);
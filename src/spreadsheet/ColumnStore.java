@@ -0,0 +1,198 @@
+package spreadsheet;
+
+/**
+ * Stores the values of constant cells column by column, in fixed-size chunks of primitive doubles.
+ *
+ * <p>A chunk holds {@value #CHUNK_ROWS} consecutive rows of one column, together with a bitmap of
+ * which of those rows hold a value. Chunks are only allocated once a row in them is set, and are
+ * dropped again when their last row is cleared, so a densely filled column costs a little over
+ * eight bytes per cell and reading down a column walks contiguous memory.
+ *
+ * <p>Locations outside {@link #fits(int, int)} are not stored here; their cells keep being stored
+ * as {@link Cell} objects.
+ */
+final class ColumnStore {
+
+  static final int CHUNK_ROWS = 1 << 12;
+  private static final int CHUNK_SHIFT = 12;
+  private static final int MAX_ROWS = 1 << 24;
+  private static final int MAX_COLUMNS = 1 << 14;
+
+  private Column[] columns = new Column[0];
+  private long size;
+
+  /**
+   * @return whether values in the given row and column can be stored here.
+   */
+  static boolean fits(int row, int column) {
+    return row >= 0 && row < MAX_ROWS && column >= 0 && column < MAX_COLUMNS;
+  }
+
+  /**
+   * @return whether a value is stored in the given row and column.
+   */
+  boolean contains(int row, int column) {
+    if (column >= columns.length || columns[column] == null) {
+      return false;
+    }
+    return columns[column].contains(row);
+  }
+
+  /**
+   * @return the value stored in the given row and column, or 0 if there is none.
+   */
+  double get(int row, int column) {
+    if (column >= columns.length || columns[column] == null) {
+      return 0.0;
+    }
+    return columns[column].get(row);
+  }
+
+  /** Stores a value in the given row and column, which must {@link #fits(int, int) fit}. */
+  void put(int row, int column, double value) {
+    if (column >= columns.length) {
+      Column[] grown = new Column[Math.max(column + 1, columns.length * 2)];
+      System.arraycopy(columns, 0, grown, 0, columns.length);
+      columns = grown;
+    }
+    if (columns[column] == null) {
+      columns[column] = new Column();
+    }
+    if (columns[column].put(row, value)) {
+      size++;
+    }
+  }
+
+  /** Clears the given row and column, if a value is stored there. */
+  void remove(int row, int column) {
+    if (column < columns.length && columns[column] != null && columns[column].remove(row)) {
+      size--;
+    }
+  }
+
+  /**
+   * @return the number of values stored.
+   */
+  long size() {
+    return size;
+  }
+
+  /** Passes every stored value to a visitor, column by column and down each column. */
+  void forEach(Visitor visitor) {
+    for (int column = 0; column < columns.length; column++) {
+      if (columns[column] != null) {
+        columns[column].forEach(column, visitor);
+      }
+    }
+  }
+
+  /** Receives the values of a {@link ColumnStore}. */
+  interface Visitor {
+    void visit(int row, int column, double value);
+  }
+
+  /**
+   * @return roughly how many bytes the chunks holding the values take up.
+   */
+  long allocatedBytes() {
+    long bytes = 0;
+    for (Column column : columns) {
+      if (column != null) {
+        bytes += column.allocatedBytes();
+      }
+    }
+    return bytes;
+  }
+
+  private static final class Column {
+    private double[][] values = new double[0][];
+    private long[][] present = new long[0][];
+    private int[] counts = new int[0];
+
+    boolean contains(int row) {
+      int chunk = row >>> CHUNK_SHIFT;
+      int offset = row & (CHUNK_ROWS - 1);
+      return chunk < present.length && present[chunk] != null
+          && (present[chunk][offset >>> 6] & 1L << offset) != 0;
+    }
+
+    double get(int row) {
+      int chunk = row >>> CHUNK_SHIFT;
+      if (chunk >= values.length || values[chunk] == null) {
+        return 0.0;
+      }
+      return values[chunk][row & (CHUNK_ROWS - 1)];
+    }
+
+    /** @return whether the row was empty before. */
+    boolean put(int row, double value) {
+      int chunk = row >>> CHUNK_SHIFT;
+      if (chunk >= values.length) {
+        int length = Math.max(chunk + 1, values.length * 2);
+        double[][] grownValues = new double[length][];
+        long[][] grownPresent = new long[length][];
+        int[] grownCounts = new int[length];
+        System.arraycopy(values, 0, grownValues, 0, values.length);
+        System.arraycopy(present, 0, grownPresent, 0, present.length);
+        System.arraycopy(counts, 0, grownCounts, 0, counts.length);
+        values = grownValues;
+        present = grownPresent;
+        counts = grownCounts;
+      }
+      if (values[chunk] == null) {
+        values[chunk] = new double[CHUNK_ROWS];
+        present[chunk] = new long[CHUNK_ROWS / 64];
+      }
+      int offset = row & (CHUNK_ROWS - 1);
+      values[chunk][offset] = value;
+      long bit = 1L << offset;
+      if ((present[chunk][offset >>> 6] & bit) != 0) {
+        return false;
+      }
+      present[chunk][offset >>> 6] |= bit;
+      counts[chunk]++;
+      return true;
+    }
+
+    /** @return whether the row held a value. */
+    boolean remove(int row) {
+      if (!contains(row)) {
+        return false;
+      }
+      int chunk = row >>> CHUNK_SHIFT;
+      int offset = row & (CHUNK_ROWS - 1);
+      if (--counts[chunk] == 0) {
+        values[chunk] = null;
+        present[chunk] = null;
+      } else {
+        values[chunk][offset] = 0.0;
+        present[chunk][offset >>> 6] &= ~(1L << offset);
+      }
+      return true;
+    }
+
+    void forEach(int column, Visitor visitor) {
+      for (int chunk = 0; chunk < present.length; chunk++) {
+        if (present[chunk] == null) {
+          continue;
+        }
+        for (int word = 0; word < CHUNK_ROWS / 64; word++) {
+          for (long bits = present[chunk][word]; bits != 0; bits &= bits - 1) {
+            int offset = word * 64 + Long.numberOfTrailingZeros(bits);
+            visitor.visit(chunk << CHUNK_SHIFT | offset, column, values[chunk][offset]);
+          }
+        }
+      }
+    }
+
+    long allocatedBytes() {
+      long bytes = 16L * values.length + 4L * counts.length;
+      for (double[] chunk : values) {
+        if (chunk != null) {
+          bytes += 8L * CHUNK_ROWS + 8L * (CHUNK_ROWS / 64);
+        }
+      }
+      return bytes;
+    }
+  }
+}
@@ -6,6 +6,9 @@ import java.util.*;
 
 /**
  * Detects dependency cycles.
+ *
+ * <p>The search is a depth-first walk over cell references that keeps its own stack, so the length
+ * of a dependency chain is bounded by the heap rather than by the thread's call stack.
  */
 public class CycleDetector {
   /**
@@ -16,7 +19,6 @@ public class CycleDetector {
    * @param spreadsheet The parent spreadsheet, used for resolving cell locations.
    */
   private BasicSpreadsheet spreadsheet;
-  private Set<CellLocation> seen = new HashSet<>();
 
   CycleDetector(BasicSpreadsheet spreadsheet) {
     this.spreadsheet = spreadsheet;
@@ -31,21 +33,59 @@ public class CycleDetector {
    * @return Whether a cycle was detected in the dependency graph starting at the given cell.
    */
   public boolean hasCycleFrom(CellLocation start) {
-    if (seen.contains(start)) {
-      return true;
-    }
-    Set<CellLocation> dependencies = new HashSet<>();
-    spreadsheet.findCellReferences(start, dependencies);
-    seen.add(start);
-    for (CellLocation dep : dependencies) {
-      if (hasCycleFrom(dep)) {
-        seen.remove(start);
-        return true;
+    return hasCycleFrom(List.of(start));
+  }
+
+  /**
+   * Checks for a cycle in the spreadsheet reachable from any of several cells.
+   *
+   * <p>Cells shown not to lead to a cycle are remembered across the starting points, so the whole
+   * check visits each reachable cell at most once.
+   *
+   * @param starts The cell locations where cycle detection should start.
+   * @return Whether a cycle was detected in the dependency graph starting at any of the cells.
+   */
+  public boolean hasCycleFrom(Collection<CellLocation> starts) {
+    // Cells on the current path, and cells already shown not to lead to a cycle.
+    Set<CellLocation> onPath = new HashSet<>();
+    Set<CellLocation> finished = new HashSet<>();
+    Deque<CellLocation> path = new ArrayDeque<>();
+    Deque<Iterator<CellLocation>> pending = new ArrayDeque<>();
+
+    for (CellLocation start : starts) {
+      if (finished.contains(start)) {
+        continue;
+      }
+      onPath.add(start);
+      path.push(start);
+      pending.push(references(start));
+      while (!path.isEmpty()) {
+        Iterator<CellLocation> refs = pending.peek();
+        if (!refs.hasNext()) {
+          CellLocation done = path.pop();
+          pending.pop();
+          onPath.remove(done);
+          finished.add(done);
+          continue;
+        }
+        CellLocation next = refs.next();
+        if (onPath.contains(next)) {
+          return true;
+        }
+        if (finished.contains(next)) {
+          continue;
+        }
+        onPath.add(next);
+        path.push(next);
+        pending.push(references(next));
       }
-      ;
     }
-    seen.remove(start);
     return false;
   }
 
+  private Iterator<CellLocation> references(CellLocation location) {
+    Set<CellLocation> dependencies = new HashSet<>();
+    spreadsheet.findCellReferences(location, dependencies);
+    return dependencies.iterator();
+  }
 }
@@ -0,0 +1,287 @@
+package spreadsheet;
+
+import common.api.CellLocation;
+import java.util.Arrays;
+
+/**
+ * The dependency graph of a spreadsheet, over int node ids rather than locations.
+ *
+ * <p>Every cell gets a node, and so does every empty location that some formula references. Edges
+ * run both ways: from a node to the precedents its formula reads, and from a node to the
+ * dependents that read it. Each direction is kept in compressed sparse row form, one flat array of
+ * node ids with an offset per node, so an edge costs four bytes in each direction.
+ *
+ * <p>Edits do not rewrite the flat arrays. A removed edge is overwritten with -1, and added edges
+ * go to a small per-node overflow array; once the edits amount to as many edges as the flat arrays
+ * hold, both are merged back into fresh flat arrays. Callers iterate a node's edges by slot:
+ *
+ * <pre>
+ *   for (int slot = 0; slot &lt; graph.dependentSlots(node); slot++) {
+ *     int dependent = graph.dependent(node, slot);
+ *     if (dependent &gt;= 0) { ... }
+ *   }
+ * </pre>
+ *
+ * <p>Any number of threads may iterate at once, as long as none of them edits the graph.
+ */
+final class DependencyGraph {
+
+  private Cell[] cells = new Cell[16];
+  private CellLocation[] locations = new CellLocation[16];
+  private int[] free = new int[16];
+  private int freeCount;
+  private int size;
+  private final Adjacency precedents = new Adjacency();
+  private final Adjacency dependents = new Adjacency();
+
+  /**
+   * Adds a node without edges.
+   *
+   * @param location The location the node stands for.
+   * @return the id of the new node.
+   */
+  int add(CellLocation location) {
+    int id;
+    if (freeCount > 0) {
+      id = free[--freeCount];
+    } else {
+      id = size++;
+      if (id == cells.length) {
+        cells = Arrays.copyOf(cells, id * 2);
+        locations = Arrays.copyOf(locations, id * 2);
+      }
+      precedents.ensure(id);
+      dependents.ensure(id);
+    }
+    locations[id] = location;
+    return id;
+  }
+
+  /** Removes a node, which must have no edges left, so that its id can be reused. */
+  void remove(int id) {
+    assert precedents.degree(id) == 0 && dependents.degree(id) == 0;
+    cells[id] = null;
+    locations[id] = null;
+    if (freeCount == free.length) {
+      free = Arrays.copyOf(free, freeCount * 2);
+    }
+    free[freeCount++] = id;
+  }
+
+  /**
+   * @return one more than the largest node id in use.
+   */
+  int capacity() {
+    return size;
+  }
+
+  /**
+   * @return the cell of a node, or null if the node stands for a location without a cell.
+   */
+  Cell getCell(int id) {
+    return cells[id];
+  }
+
+  void setCell(int id, Cell cell) {
+    cells[id] = cell;
+  }
+
+  CellLocation getLocation(int id) {
+    return locations[id];
+  }
+
+  /**
+   * Records that a node reads another.
+   *
+   * @return false if the edge was already there.
+   */
+  boolean addEdge(int dependent, int precedent) {
+    // Precedent lists are as long as a formula, so this is the cheap direction to search.
+    if (precedents.contains(dependent, precedent)) {
+      return false;
+    }
+    precedents.add(dependent, precedent);
+    dependents.add(precedent, dependent);
+    return true;
+  }
+
+  /** Removes the edge from a node to one of its precedents, if there is one. */
+  void removeEdge(int dependent, int precedent) {
+    if (precedents.remove(dependent, precedent)) {
+      dependents.remove(precedent, dependent);
+    }
+  }
+
+  /**
+   * @return the number of nodes reading the given node.
+   */
+  int dependentCount(int id) {
+    return dependents.degree(id);
+  }
+
+  /**
+   * @return the number of slots to iterate for a node's dependents; some may hold -1.
+   */
+  int dependentSlots(int id) {
+    return dependents.slots(id);
+  }
+
+  /**
+   * @return the dependent in a slot, or -1 for a slot whose edge was removed.
+   */
+  int dependent(int id, int slot) {
+    return dependents.get(id, slot);
+  }
+
+  /**
+   * @return the number of nodes read by the given node.
+   */
+  int precedentCount(int id) {
+    return precedents.degree(id);
+  }
+
+  /**
+   * @return the number of slots to iterate for a node's precedents; some may hold -1.
+   */
+  int precedentSlots(int id) {
+    return precedents.slots(id);
+  }
+
+  /**
+   * @return the precedent in a slot, or -1 for a slot whose edge was removed.
+   */
+  int precedent(int id, int slot) {
+    return precedents.get(id, slot);
+  }
+
+  /**
+   * @return the number of edges in the graph.
+   */
+  long edgeCount() {
+    return precedents.edges;
+  }
+
+  /** One direction of the graph. */
+  private static final class Adjacency {
+    // Compressed rows: the edges of node i are rows[offsets[i]] up to rows[offsets[i + 1]].
+    private int[] offsets = {0};
+    private int[] rows = new int[0];
+    // Edges added since the last compaction.
+    private int[][] overflow = new int[16][];
+    private int[] overflowSize = new int[16];
+    private int[] degree = new int[16];
+    private long edges;
+    private long edits;
+
+    void ensure(int id) {
+      if (id >= degree.length) {
+        int length = Math.max(id + 1, degree.length * 2);
+        overflow = Arrays.copyOf(overflow, length);
+        overflowSize = Arrays.copyOf(overflowSize, length);
+        degree = Arrays.copyOf(degree, length);
+      }
+    }
+
+    int degree(int id) {
+      return degree[id];
+    }
+
+    private int compacted(int id) {
+      return id + 1 < offsets.length ? offsets[id + 1] - offsets[id] : 0;
+    }
+
+    int slots(int id) {
+      return compacted(id) + overflowSize[id];
+    }
+
+    int get(int id, int slot) {
+      int compacted = compacted(id);
+      return slot < compacted ? rows[offsets[id] + slot] : overflow[id][slot - compacted];
+    }
+
+    boolean contains(int id, int target) {
+      for (int slot = slots(id) - 1; slot >= 0; slot--) {
+        if (get(id, slot) == target) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    void add(int id, int target) {
+      int[] extra = overflow[id];
+      if (extra == null) {
+        extra = overflow[id] = new int[2];
+      } else if (overflowSize[id] == extra.length) {
+        extra = overflow[id] = Arrays.copyOf(extra, extra.length * 2);
+      }
+      extra[overflowSize[id]++] = target;
+      degree[id]++;
+      edges++;
+      edited();
+    }
+
+    /**
+     * @return whether the edge was there.
+     */
+    boolean remove(int id, int target) {
+      // Recently added edges are the likeliest to be removed again, so look at those first.
+      int[] extra = overflow[id];
+      for (int i = overflowSize[id] - 1; i >= 0; i--) {
+        if (extra[i] == target) {
+          extra[i] = extra[--overflowSize[id]];
+          if (overflowSize[id] == 0) {
+            overflow[id] = null;
+          }
+          removed(id);
+          return true;
+        }
+      }
+      int from = id + 1 < offsets.length ? offsets[id] : 0;
+      int to = id + 1 < offsets.length ? offsets[id + 1] : 0;
+      for (int i = from; i < to; i++) {
+        if (rows[i] == target) {
+          rows[i] = -1;
+          removed(id);
+          return true;
+        }
+      }
+      return false;
+    }
+
+    private void removed(int id) {
+      degree[id]--;
+      edges--;
+      edited();
+    }
+
+    private void edited() {
+      if (++edits > Math.max(1024, rows.length)) {
+        compact();
+      }
+    }
+
+    private void compact() {
+      int nodes = degree.length;
+      int[] compactedOffsets = new int[nodes + 1];
+      for (int id = 0; id < nodes; id++) {
+        compactedOffsets[id + 1] = compactedOffsets[id] + degree[id];
+      }
+      int[] compactedRows = new int[compactedOffsets[nodes]];
+      for (int id = 0; id < nodes; id++) {
+        int next = compactedOffsets[id];
+        for (int slot = 0, slots = slots(id); slot < slots; slot++) {
+          int target = get(id, slot);
+          if (target >= 0) {
+            compactedRows[next++] = target;
+          }
+        }
+        overflow[id] = null;
+        overflowSize[id] = 0;
+      }
+      offsets = compactedOffsets;
+      rows = compactedRows;
+      edits = 0;
+    }
+  }
+}
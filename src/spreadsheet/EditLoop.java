@@ -0,0 +1,354 @@
+package spreadsheet;
+
+import common.api.BasicSpreadsheet;
+import common.api.CellLocation;
+import common.api.Expression;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * Fronts a spreadsheet with a single writer thread that applies every change to it.
+ *
+ * <p>Clients submit edits as commands to a bounded ring. Submitting claims a slot with one atomic
+ * update and never takes a lock, and the input is parsed by the client before anything is
+ * submitted, so syntax errors are reported straight away. The writer takes all the commands that
+ * are waiting at once and applies each run of consecutive edits as one batch, recalculated in one
+ * pass. The edits of a batch are still checked for cycles one after another, intermediate edits of
+ * a location included, so a batch goes through exactly when each of its edits would have been
+ * accepted on its own. If one of them would close a cycle, the batch is left out entirely and
+ * applied one edit at a time instead, so each is accepted or rejected exactly as if it had been
+ * made on its own. A batch that throws may have been partly applied, so it is not replayed: the
+ * exception is reported for each of its edits instead.
+ *
+ * <p>Reads go straight to the spreadsheet and see its committed values, without waiting for the
+ * writer. {@link #setCellExpression} and the other changes of {@link BasicSpreadsheet} submit a
+ * command and wait until it has been applied, while {@link #submit} returns at once.
+ */
+public final class EditLoop implements BasicSpreadsheet, AutoCloseable {
+
+  // Set in the count of claimed sequences once no more commands are accepted.
+  private static final long CLOSED = 1L << 62;
+
+  private final Spreadsheet spreadsheet;
+  private final AtomicReferenceArray<Command> ring;
+  private final int mask;
+  // The number of sequences claimed by clients, with CLOSED set once the loop is closed.
+  private final AtomicLong claimed = new AtomicLong();
+  // Every sequence below these has been taken off the ring, or applied to the spreadsheet.
+  private volatile long consumed;
+  private volatile long applied;
+  private volatile boolean sleeping;
+  private volatile int waiting;
+  private final Object monitor = new Object();
+  private final Thread writer;
+
+  /**
+   * Starts a loop with room for 1024 waiting commands, on a daemon thread of its own.
+   */
+  public EditLoop(Spreadsheet spreadsheet) {
+    this(spreadsheet, 1024, runnable -> {
+      Thread thread = new Thread(runnable, "spreadsheet-writer");
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  /**
+   * Starts a loop.
+   *
+   * @param spreadsheet The spreadsheet to change.
+   * @param capacity How many commands can wait to be applied before clients have to wait, rounded
+   *     up to a power of two.
+   * @param threadFactory Makes the writer thread.
+   */
+  public EditLoop(Spreadsheet spreadsheet, int capacity, ThreadFactory threadFactory) {
+    if (capacity <= 0 || capacity > 1 << 30) {
+      throw new IllegalArgumentException("capacity out of range: " + capacity);
+    }
+    int size = Integer.highestOneBit(capacity);
+    size = size < capacity ? size << 1 : size;
+    this.spreadsheet = spreadsheet;
+    this.ring = new AtomicReferenceArray<>(size);
+    this.mask = size - 1;
+    this.writer = threadFactory.newThread(this::run);
+    writer.start();
+  }
+
+  /**
+   * Submits an edit without waiting for it to be applied. The only wait is for room in the ring,
+   * when the writer has fallen a whole ring behind.
+   *
+   * @return the sequence of the edit, to pass to {@link #awaitApplied}.
+   * @throws InvalidSyntaxException if the input has invalid syntax, in which case nothing is
+   *     submitted.
+   * @throws IllegalStateException if the loop has been closed.
+   */
+  public long submit(CellLocation location, String input) throws InvalidSyntaxException {
+    return publish(new Command(location, spreadsheet.parse(input), null, false));
+  }
+
+  /**
+   * Waits until the writer has applied the command with the given sequence and every command
+   * submitted before it.
+   */
+  public void awaitApplied(long sequence) throws InterruptedException {
+    if (applied > sequence) {
+      return;
+    }
+    synchronized (monitor) {
+      waiting++;
+      try {
+        while (applied <= sequence) {
+          monitor.wait();
+        }
+      } finally {
+        waiting--;
+      }
+    }
+  }
+
+  @Override
+  public void setCellExpression(CellLocation location, String input)
+      throws InvalidSyntaxException {
+    await(new Command(location, spreadsheet.parse(input), null, true));
+  }
+
+  @Override
+  public void addDependency(CellLocation dependent, CellLocation dependency) {
+    await(new Command(null, null, sheet -> sheet.addDependency(dependent, dependency), true));
+  }
+
+  @Override
+  public void removeDependency(CellLocation dependent, CellLocation dependency) {
+    await(new Command(null, null, sheet -> sheet.removeDependency(dependent, dependency), true));
+  }
+
+  @Override
+  public void recalculate(CellLocation location) {
+    await(new Command(null, null, sheet -> sheet.recalculate(location), true));
+  }
+
+  @Override
+  public double getCellValue(CellLocation location) {
+    return spreadsheet.getCellValue(location);
+  }
+
+  @Override
+  public String getCellDisplay(CellLocation location) {
+    return spreadsheet.getCellDisplay(location);
+  }
+
+  @Override
+  public String getCellExpression(CellLocation location) {
+    return spreadsheet.getCellExpression(location);
+  }
+
+  @Override
+  public void findCellReferences(CellLocation subject, Set<CellLocation> target) {
+    spreadsheet.findCellReferences(subject, target);
+  }
+
+  /**
+   * Stops accepting commands, and waits for the writer to apply the ones already submitted. An
+   * interrupt does not cut the wait short, but is kept for the caller to see.
+   */
+  @Override
+  public void close() {
+    long count = claimed.get();
+    while ((count & CLOSED) == 0 && !claimed.compareAndSet(count, count | CLOSED)) {
+      count = claimed.get();
+    }
+    LockSupport.unpark(writer);
+    boolean interrupted = false;
+    while (true) {
+      try {
+        writer.join();
+        break;
+      } catch (InterruptedException e) {
+        interrupted = true;
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /** Submits a command and waits for it, passing on anything it threw. */
+  private void await(Command command) {
+    long sequence = publish(command);
+    boolean interrupted = false;
+    while (true) {
+      try {
+        awaitApplied(sequence);
+        break;
+      } catch (InterruptedException e) {
+        interrupted = true;
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+    if (command.failure != null) {
+      throw command.failure;
+    }
+  }
+
+  private long publish(Command command) {
+    long sequence;
+    do {
+      sequence = claimed.get();
+      if ((sequence & CLOSED) != 0) {
+        throw new IllegalStateException("the edit loop is closed");
+      }
+    } while (!claimed.compareAndSet(sequence, sequence + 1));
+    while (sequence - consumed > mask) {
+      LockSupport.parkNanos(this, 10_000L);
+    }
+    ring.set((int) sequence & mask, command);
+    if (sleeping) {
+      LockSupport.unpark(writer);
+    }
+    return sequence;
+  }
+
+  private void run() {
+    List<Command> batch = new ArrayList<>();
+    long next = 0;
+    Command command;
+    while ((command = take(next)) != null) {
+      do {
+        ring.set((int) next & mask, null);
+        next++;
+        batch.add(command);
+      } while (batch.size() <= mask && (command = ring.get((int) next & mask)) != null);
+      consumed = next;
+      apply(batch);
+      batch.clear();
+      applied = next;
+      if (waiting > 0) {
+        synchronized (monitor) {
+          monitor.notifyAll();
+        }
+      }
+    }
+  }
+
+  /**
+   * Waits for the command with the given sequence to be published.
+   *
+   * @return the command, or null if the loop has been closed and every command applied.
+   */
+  private Command take(long sequence) {
+    int index = (int) sequence & mask;
+    while (true) {
+      Command command = ring.get(index);
+      if (command != null) {
+        return command;
+      }
+      long count = claimed.get();
+      if ((count & ~CLOSED) > sequence) {
+        // Claimed by a client that has not stored it yet.
+        Thread.onSpinWait();
+      } else if ((count & CLOSED) != 0) {
+        return null;
+      } else {
+        sleeping = true;
+        if (ring.get(index) == null && claimed.get() == count) {
+          LockSupport.park(this);
+        }
+        sleeping = false;
+      }
+    }
+  }
+
+  /** Applies the commands in order, batching each run of consecutive edits. */
+  private void apply(List<Command> batch) {
+    int start = 0;
+    for (int i = 0; i <= batch.size(); i++) {
+      if (i == batch.size() || batch.get(i).action != null) {
+        applyEdits(batch.subList(start, i));
+        if (i < batch.size()) {
+          applyOne(batch.get(i));
+        }
+        start = i + 1;
+      }
+    }
+  }
+
+  private void applyEdits(List<Command> edits) {
+    if (edits.size() > 1) {
+      List<Map.Entry<CellLocation, Expression>> sequence = new ArrayList<>(edits.size());
+      for (Command edit : edits) {
+        sequence.add(new AbstractMap.SimpleImmutableEntry<>(edit.location, edit.parsed));
+      }
+      try {
+        if (spreadsheet.setParsedCellExpressions(sequence)) {
+          return;
+        }
+      } catch (RuntimeException e) {
+        boolean unclaimed = false;
+        for (Command edit : edits) {
+          if (edit.awaited) {
+            edit.failure = e;
+          } else {
+            unclaimed = true;
+          }
+        }
+        if (unclaimed) {
+          report(e);
+        }
+        return;
+      }
+    }
+    edits.forEach(this::applyOne);
+  }
+
+  private void applyOne(Command command) {
+    try {
+      if (command.action != null) {
+        command.action.accept(spreadsheet);
+      } else {
+        spreadsheet.setParsedCellExpression(command.location, command.parsed);
+      }
+    } catch (RuntimeException e) {
+      if (command.awaited) {
+        command.failure = e;
+      } else {
+        report(e);
+      }
+    }
+  }
+
+  /** Reports a failure that no client is waiting to receive. */
+  private static void report(RuntimeException e) {
+    Thread thread = Thread.currentThread();
+    thread.getUncaughtExceptionHandler().uncaughtException(thread, e);
+  }
+
+  /** A change waiting to be applied: either an edit of one location, or some other action. */
+  private static final class Command {
+    final CellLocation location;
+    final Expression parsed;
+    final Consumer<Spreadsheet> action;
+    // Whether a client waits for the command, and so takes whatever it throws.
+    final boolean awaited;
+    // Written by the writer before it publishes the applied sequence.
+    RuntimeException failure;
+
+    Command(CellLocation location, Expression parsed, Consumer<Spreadsheet> action,
+        boolean awaited) {
+      this.location = location;
+      this.parsed = parsed;
+      this.action = action;
+      this.awaited = awaited;
+    }
+  }
+}
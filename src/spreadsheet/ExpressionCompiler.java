@@ -0,0 +1,155 @@
+package spreadsheet;
+
+import static java.lang.invoke.MethodType.methodType;
+
+import common.api.CellLocation;
+import common.api.EvaluationContext;
+import common.api.Expression;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Compiles expression trees into method handle trees for cells that are evaluated often.
+ *
+ * <p>A compiled formula has type {@code ()double}. Numbers become constants, operators become
+ * direct calls to the arithmetic below, and cell references are bound to the referenced
+ * {@link Cell} objects, so evaluation no longer walks the tree, switches on operator kinds or looks
+ * cells up by location. The handles are plain combinators, which the JIT can inline into straight
+ * line arithmetic once a formula is hot.
+ */
+final class ExpressionCompiler {
+
+  private static final MethodHandle PLUS;
+  private static final MethodHandle MINUS;
+  private static final MethodHandle STAR;
+  private static final MethodHandle SLASH;
+  private static final MethodHandle CARET;
+  private static final MethodHandle READ;
+  private static final MethodHandle EVALUATE;
+
+  static {
+    MethodHandles.Lookup lookup = MethodHandles.lookup();
+    MethodType binary = methodType(double.class, double.class, double.class);
+    try {
+      PLUS = lookup.findStatic(ExpressionCompiler.class, "plus", binary);
+      MINUS = lookup.findStatic(ExpressionCompiler.class, "minus", binary);
+      STAR = lookup.findStatic(ExpressionCompiler.class, "star", binary);
+      SLASH = lookup.findStatic(ExpressionCompiler.class, "slash", binary);
+      CARET = lookup.findStatic(Math.class, "pow", binary);
+      READ = lookup.findStatic(
+          ExpressionCompiler.class, "read", methodType(double.class, Spreadsheet.class, Cell.class));
+      EVALUATE = lookup
+          .findVirtual(Expression.class, "evaluate", methodType(double.class, EvaluationContext.class))
+          .asType(methodType(double.class, Expression.class, Spreadsheet.class));
+    } catch (ReflectiveOperationException e) {
+      throw new ExceptionInInitializerError(e);
+    }
+  }
+
+  private ExpressionCompiler() {}
+
+  /**
+   * Compiles an expression, resolving its references against a spreadsheet.
+   *
+   * @param expression The expression to compile.
+   * @param spreadsheet The spreadsheet whose cells the expression refers to.
+   * @return a handle of type {@code ()double} evaluating the expression.
+   */
+  static MethodHandle compile(Expression expression, Spreadsheet spreadsheet) {
+    if (expression instanceof Numbers number) {
+      return MethodHandles.constant(double.class, number.getValue());
+    }
+    if (expression instanceof Parentheses parentheses) {
+      return compile(parentheses.e, spreadsheet);
+    }
+    if (expression instanceof Formula formula) {
+      return compile(formula.getBody(), spreadsheet);
+    }
+    if (expression instanceof Memo memo) {
+      // Straight-line code is cheap enough that memoizing it would not pay for the check.
+      return compile(memo.getExpression(), spreadsheet);
+    }
+    if (expression instanceof CellReferences reference) {
+      CellLocation location = reference.getCellLocation();
+      Cell cell = spreadsheet.getCell(location);
+      if (cell == null) {
+        // Without a cell to bind to, fall back to looking the location up on every evaluation.
+        return MethodHandles.insertArguments(EVALUATE, 0, expression, spreadsheet);
+      }
+      return MethodHandles.insertArguments(READ, 0, spreadsheet, cell);
+    }
+    if (expression instanceof BinApp application) {
+      MethodHandle operator;
+      switch (application.getOperator().getKind()) {
+        case PLUS -> operator = PLUS;
+        case MINUS -> operator = MINUS;
+        case STAR -> operator = STAR;
+        case SLASH -> operator = SLASH;
+        case CARET -> operator = CARET;
+        default -> operator = MethodHandles.dropArguments(
+            MethodHandles.constant(double.class, 0.0), 0, double.class, double.class);
+      }
+      MethodHandle left = compile(application.getLeft(), spreadsheet);
+      MethodHandle right = compile(application.getRight(), spreadsheet);
+      return MethodHandles.collectArguments(
+          MethodHandles.collectArguments(operator, 0, left), 0, right);
+    }
+    if (expression instanceof PostfixProgram program) {
+      return compile(program, spreadsheet);
+    }
+    // Node types the compiler does not know are evaluated as they are.
+    return MethodHandles.insertArguments(EVALUATE, 0, expression, spreadsheet);
+  }
+
+  /** Runs a postfix program symbolically, with handles standing in for the stack's values. */
+  private static MethodHandle compile(PostfixProgram program, Spreadsheet spreadsheet) {
+    Deque<MethodHandle> stack = new ArrayDeque<>();
+    for (int instruction : program.getCode()) {
+      int operand = instruction >>> 8;
+      switch (instruction & 0xff) {
+        case PostfixProgram.CONSTANT -> stack.push(
+            MethodHandles.constant(double.class, program.getConstants()[operand]));
+        case PostfixProgram.LOAD -> stack.push(
+            compile(new CellReferences(program.getSlots()[operand]), spreadsheet));
+        default -> {
+          MethodHandle right = stack.pop();
+          MethodHandle left = stack.pop();
+          MethodHandle operator = switch (instruction & 0xff) {
+            case PostfixProgram.PLUS -> PLUS;
+            case PostfixProgram.MINUS -> MINUS;
+            case PostfixProgram.STAR -> STAR;
+            case PostfixProgram.SLASH -> SLASH;
+            default -> CARET;
+          };
+          stack.push(MethodHandles.collectArguments(
+              MethodHandles.collectArguments(operator, 0, left), 0, right));
+        }
+      }
+    }
+    return stack.pop();
+  }
+
+  private static double plus(double v1, double v2) {
+    return v1 + v2;
+  }
+
+  private static double minus(double v1, double v2) {
+    return v1 - v2;
+  }
+
+  private static double star(double v1, double v2) {
+    return v1 * v2;
+  }
+
+  private static double slash(double v1, double v2) {
+    return v1 / v2;
+  }
+
+  /** Reads a referenced cell, evaluating it first if it is dirty in a lazy spreadsheet. */
+  private static double read(Spreadsheet spreadsheet, Cell cell) {
+    return cell.isDirty() ? spreadsheet.getCellValue(cell.getLocation()) : cell.getValue();
+  }
+}
@@ -0,0 +1,72 @@
+package spreadsheet;
+
+import common.api.Expression;
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Hash-conses expression trees, so that equal subtrees across all the formulas of a spreadsheet
+ * are represented by one shared node.
+ *
+ * <p>Expression nodes are immutable, which is what makes sharing them safe. Nodes are interned
+ * bottom-up, so the children of a canonical node are canonical themselves and comparing two
+ * candidates only compares their children by identity. The table only holds its nodes weakly, so
+ * subtrees no longer used by any cell are collected as usual.
+ */
+final class ExpressionInterner {
+
+  private final Map<Expression, WeakReference<Expression>> nodes = new WeakHashMap<>();
+  private final boolean memoize;
+
+  /**
+   * @param memoize Whether shared subtrees that read cells should be wrapped in {@link Memo}s, so
+   *     they are evaluated once per recalculation pass rather than once per cell using them.
+   */
+  ExpressionInterner(boolean memoize) {
+    this.memoize = memoize;
+  }
+
+  /**
+   * @return the canonical tree equal to the given one.
+   */
+  Expression intern(Expression expression) {
+    if (expression instanceof Formula formula) {
+      return new Formula(intern(formula.getSource()), intern(formula.getBody()));
+    }
+    if (expression instanceof Parentheses parentheses) {
+      Expression inner = intern(parentheses.e);
+      return canonical(inner == parentheses.e ? parentheses : new Parentheses(inner));
+    }
+    if (expression instanceof BinApp application) {
+      Expression left = intern(application.getLeft());
+      Expression right = intern(application.getRight());
+      if (left != application.getLeft() || right != application.getRight()) {
+        application = new BinApp(application.getOperator(), left, right);
+      }
+      return canonical(application);
+    }
+    if (expression instanceof Numbers || expression instanceof CellReferences) {
+      return canonical(expression);
+    }
+    return expression;
+  }
+
+  /**
+   * @return the number of distinct nodes currently interned.
+   */
+  int size() {
+    return nodes.size();
+  }
+
+  private Expression canonical(Expression node) {
+    WeakReference<Expression> existing = nodes.get(node);
+    Expression shared = existing == null ? null : existing.get();
+    if (shared == null) {
+      shared = memoize && node instanceof BinApp && !node.getCellReferences().isEmpty()
+          ? new Memo(node) : node;
+      nodes.put(node, new WeakReference<>(shared));
+    }
+    return shared;
+  }
+}
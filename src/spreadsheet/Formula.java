@@ -0,0 +1,67 @@
+package spreadsheet;
+
+import common.api.CellLocation;
+import common.api.EvaluationContext;
+import common.api.Expression;
+import java.util.Set;
+
+/**
+ * A formula whose evaluation tree has been simplified, together with the tree it was parsed as.
+ *
+ * <p>Evaluation and references go through the simplified body, while {@link #toString()} prints
+ * the formula as it was written, so simplification never shows in a cell's expression.
+ */
+public final class Formula implements Expression {
+
+  private final Expression source;
+  private final Expression body;
+
+  Formula(Expression source, Expression body) {
+    this.source = source;
+    this.body = body;
+  }
+
+  /**
+   * @return the expression as it was parsed.
+   */
+  public Expression getSource() {
+    return source;
+  }
+
+  /**
+   * @return the simplified expression that is evaluated in place of the source.
+   */
+  public Expression getBody() {
+    return body;
+  }
+
+  @Override
+  public double evaluate(EvaluationContext context) {
+    return body.evaluate(context);
+  }
+
+  @Override
+  public void findCellReferences(Set<CellLocation> dependencies) {
+    body.findCellReferences(dependencies);
+  }
+
+  @Override
+  public Set<CellLocation> getCellReferences() {
+    return body.getCellReferences();
+  }
+
+  @Override
+  public String toString() {
+    return source.toString();
+  }
+
+  @Override
+  public int hashCode() {
+    return 31 * source.hashCode() + body.hashCode();
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    return obj instanceof Formula other && source.equals(other.source) && body.equals(other.body);
+  }
+}
@@ -0,0 +1,63 @@
+package spreadsheet;
+
+import common.api.CellLocation;
+import common.api.EvaluationContext;
+import common.api.Expression;
+import java.util.Set;
+
+/**
+ * A shared subexpression that is evaluated at most once per recalculation pass.
+ *
+ * <p>Within one pass every cell that evaluates the subexpression depends on all of the cells it
+ * references, so those cells are already final by the time the first of them reads it, and the
+ * value can be reused by the rest. Outside of a pass, or with any context but the owning
+ * spreadsheet, the subexpression is simply evaluated.
+ */
+final class Memo implements Expression {
+
+  private final Expression e;
+  private double value;
+  // Written after the value, so a reader that sees the current pass also sees its value.
+  private volatile long pass;
+
+  Memo(Expression e) {
+    this.e = e;
+  }
+
+  Expression getExpression() {
+    return e;
+  }
+
+  @Override
+  public double evaluate(EvaluationContext context) {
+    if (!(context instanceof Spreadsheet spreadsheet)) {
+      return e.evaluate(context);
+    }
+    long current = spreadsheet.getPass();
+    if (current == 0) {
+      return e.evaluate(context);
+    }
+    if (pass == current) {
+      return value;
+    }
+    double result = e.evaluate(context);
+    value = result;
+    pass = current;
+    return result;
+  }
+
+  @Override
+  public void findCellReferences(Set<CellLocation> dependencies) {
+    e.findCellReferences(dependencies);
+  }
+
+  @Override
+  public Set<CellLocation> getCellReferences() {
+    return e.getCellReferences();
+  }
+
+  @Override
+  public String toString() {
+    return e.toString();
+  }
+}
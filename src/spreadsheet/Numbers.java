@@ -15,11 +15,26 @@ public class Numbers implements Expression {
     this.value = value;
   }
 
+  public double getValue() {
+    return value;
+  }
+
   @Override
   public String toString() {
     return Double.toString(value);
   }
 
+  @Override
+  public int hashCode() {
+    return Double.hashCode(value);
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    return obj instanceof Numbers other
+        && Double.doubleToLongBits(value) == Double.doubleToLongBits(other.value);
+  }
+
   @Override
   public double evaluate(EvaluationContext context) {
     return value;
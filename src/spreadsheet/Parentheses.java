@@ -7,7 +7,7 @@ import java.util.Set;
 
 public class Parentheses implements Expression {
 
-  Expression e;
+  final Expression e;
 
   Parentheses(Expression e) {
     this.e = e;
@@ -32,4 +32,14 @@ public class Parentheses implements Expression {
   public String toString() {
     return "(" + e.toString() + ")";
   }
+
+  @Override
+  public int hashCode() {
+    return 31 * e.hashCode() + 1;
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    return obj instanceof Parentheses other && e.equals(other.e);
+  }
 }
@@ -1,5 +1,6 @@
 package spreadsheet;
 
+import common.api.CellLocation;
 import common.api.Expression;
 import common.lexer.InvalidTokenException;
 import common.lexer.Lexer;
@@ -33,7 +34,7 @@ public class Parser {
           Expression e1 = operands.pop();
           operands.push(new BinApp(operators.pop(), e1, e2));
         }
-        return operands.pop();
+        return Simplifier.simplify(operands.pop());
       }
       switch (token.kind) {
         case NUMBER -> {
@@ -44,6 +45,7 @@ public class Parser {
           Expression e = new CellReferences(token.cellLocationValue);
           operands.push(e);
         }
+        case IDENTIFIER -> operands.push(parseAggregate(token.identifierValue, lexer));
         case CARET, STAR, PLUS, MINUS, SLASH -> {
           BinOp op = new BinOp(token.kind);
           if (operators.empty()) {
@@ -79,4 +81,34 @@ public class Parser {
 
     }
   }
+
+  /** Parses the rest of a function applied to a range, such as {@code sum(a1:b100)}. */
+  private static Expression parseAggregate(String name, Lexer lexer)
+      throws InvalidSyntaxException {
+    Aggregate.Function function;
+    try {
+      function = Aggregate.Function.valueOf(name.toUpperCase());
+    } catch (IllegalArgumentException e) {
+      throw new InvalidSyntaxException("Invalid Syntax");
+    }
+    expect(lexer, Token.Kind.LPARENTHESIS);
+    CellLocation from = expect(lexer, Token.Kind.CELL_LOCATION).cellLocationValue;
+    expect(lexer, Token.Kind.COLON);
+    CellLocation to = expect(lexer, Token.Kind.CELL_LOCATION).cellLocationValue;
+    expect(lexer, Token.Kind.RPARENTHESIS);
+    return new Aggregate(function, new Range(from, to));
+  }
+
+  private static Token expect(Lexer lexer, Token.Kind kind) throws InvalidSyntaxException {
+    Token token;
+    try {
+      token = lexer.nextToken();
+    } catch (InvalidTokenException e) {
+      throw new InvalidSyntaxException("Invalid Syntax");
+    }
+    if (token == null || token.kind != kind) {
+      throw new InvalidSyntaxException("Invalid Syntax");
+    }
+    return token;
+  }
 }
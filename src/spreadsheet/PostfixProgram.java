@@ -0,0 +1,302 @@
+package spreadsheet;
+
+import common.api.CellLocation;
+import common.api.EvaluationContext;
+import common.api.Expression;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A compact, flat form of an expression: a postfix program for a small stack machine.
+ *
+ * <p>Each instruction is one int, holding an opcode in its low byte and, for loads, an index into
+ * the constant pool or the slot table in the rest. Evaluation is a single loop over the code using
+ * a per-thread scratch stack, without any pointer chasing between nodes. Redundant parentheses are
+ * dropped on compilation, so {@link #toString()} gives back an equivalent, fully bracketed form of
+ * the original expression. A {@link Formula} is run from its simplified body, but prints as its
+ * source would. A spreadsheet storing compact formulas also keeps the text each one was parsed as,
+ * so that a cell's expression reads back the same in either storage. Programs can be written to and
+ * read from a {@link DataOutput} as they are.
+ */
+public final class PostfixProgram implements Expression {
+
+  static final int CONSTANT = 0;
+  static final int LOAD = 1;
+  static final int PLUS = 2;
+  static final int MINUS = 3;
+  static final int STAR = 4;
+  static final int SLASH = 5;
+  static final int CARET = 6;
+
+  private static final char[] SYMBOLS = {0, 0, '+', '-', '*', '/', '^'};
+
+  private static final ThreadLocal<double[]> SCRATCH = ThreadLocal.withInitial(() -> new double[16]);
+
+  private final int[] code;
+  private final double[] constants;
+  private final CellLocation[] slots;
+  private final int maxStack;
+  // What the program prints as, when that differs from its own bracketed form, or null.
+  private final String text;
+
+  private PostfixProgram(int[] code, double[] constants, CellLocation[] slots, String text) {
+    this.code = code;
+    this.constants = constants;
+    this.slots = slots;
+    this.text = text == null || text.equals(render()) ? null : text;
+    int depth = 0;
+    int max = 0;
+    for (int instruction : code) {
+      depth += (instruction & 0xff) <= LOAD ? 1 : -1;
+      max = Math.max(max, depth);
+    }
+    this.maxStack = max;
+  }
+
+  /**
+   * Compiles an expression tree into a postfix program.
+   *
+   * @param expression The tree to compile, built from the parser's node types.
+   * @return an equivalent program.
+   */
+  public static PostfixProgram compile(Expression expression) {
+    String text = null;
+    if (expression instanceof Formula formula) {
+      text = compile(formula.getSource()).toString();
+    } else if (expression instanceof PostfixProgram program) {
+      text = program.text;
+    }
+    return compile(expression, text);
+  }
+
+  /**
+   * Compiles an expression tree into a postfix program that prints as the given text.
+   *
+   * @param expression The tree to compile, built from the parser's node types.
+   * @param text What the program's {@link #toString()} gives, or null for its own bracketed form.
+   * @return an equivalent program.
+   */
+  static PostfixProgram compile(Expression expression, String text) {
+    Builder builder = new Builder();
+    builder.emit(expression);
+    return builder.build(text);
+  }
+
+  @Override
+  public double evaluate(EvaluationContext context) {
+    double[] stack = SCRATCH.get();
+    if (stack.length < maxStack) {
+      stack = new double[maxStack];
+      SCRATCH.set(stack);
+    }
+    int top = 0;
+    for (int instruction : code) {
+      switch (instruction & 0xff) {
+        case CONSTANT -> stack[top++] = constants[instruction >>> 8];
+        case LOAD -> stack[top++] = context.getCellValue(slots[instruction >>> 8]);
+        case PLUS -> {
+          top--;
+          stack[top - 1] += stack[top];
+        }
+        case MINUS -> {
+          top--;
+          stack[top - 1] -= stack[top];
+        }
+        case STAR -> {
+          top--;
+          stack[top - 1] *= stack[top];
+        }
+        case SLASH -> {
+          top--;
+          stack[top - 1] /= stack[top];
+        }
+        case CARET -> {
+          top--;
+          stack[top - 1] = Math.pow(stack[top - 1], stack[top]);
+        }
+        default -> throw new IllegalStateException("bad opcode " + (instruction & 0xff));
+      }
+    }
+    return stack[0];
+  }
+
+  @Override
+  public void findCellReferences(Set<CellLocation> dependencies) {
+    for (CellLocation slot : slots) {
+      dependencies.add(slot);
+    }
+  }
+
+  @Override
+  public Set<CellLocation> getCellReferences() {
+    Set<CellLocation> cellReferences = new HashSet<>();
+    findCellReferences(cellReferences);
+    return cellReferences;
+  }
+
+  @Override
+  public String toString() {
+    return text != null ? text : render();
+  }
+
+  /** Rebuilds the fully bracketed infix form of the program. */
+  private String render() {
+    Deque<String> stack = new ArrayDeque<>();
+    for (int instruction : code) {
+      int opcode = instruction & 0xff;
+      if (opcode == CONSTANT) {
+        stack.push(Double.toString(constants[instruction >>> 8]));
+      } else if (opcode == LOAD) {
+        stack.push(slots[instruction >>> 8].toString());
+      } else {
+        String e2 = stack.pop();
+        String e1 = stack.pop();
+        stack.push("(" + e1 + SYMBOLS[opcode] + e2 + ")");
+      }
+    }
+    return stack.pop();
+  }
+
+  int[] getCode() {
+    return code;
+  }
+
+  double[] getConstants() {
+    return constants;
+  }
+
+  CellLocation[] getSlots() {
+    return slots;
+  }
+
+  /**
+   * Writes the program in a form {@link #readFrom(DataInput)} can load back.
+   *
+   * @param out The destination.
+   * @throws IOException if writing fails.
+   */
+  public void writeTo(DataOutput out) throws IOException {
+    out.writeInt(code.length);
+    for (int instruction : code) {
+      out.writeInt(instruction);
+    }
+    out.writeInt(constants.length);
+    for (double constant : constants) {
+      out.writeDouble(constant);
+    }
+    out.writeInt(slots.length);
+    for (CellLocation slot : slots) {
+      out.writeUTF(slot.toString());
+    }
+    out.writeBoolean(text != null);
+    if (text != null) {
+      out.writeUTF(text);
+    }
+  }
+
+  /**
+   * Reads a program written by {@link #writeTo(DataOutput)}.
+   *
+   * @param in The source.
+   * @return the program.
+   * @throws IOException if reading fails.
+   */
+  public static PostfixProgram readFrom(DataInput in) throws IOException {
+    int[] code = new int[in.readInt()];
+    for (int i = 0; i < code.length; i++) {
+      code[i] = in.readInt();
+    }
+    double[] constants = new double[in.readInt()];
+    for (int i = 0; i < constants.length; i++) {
+      constants[i] = in.readDouble();
+    }
+    CellLocation[] slots = new CellLocation[in.readInt()];
+    for (int i = 0; i < slots.length; i++) {
+      slots[i] = new CellLocation(in.readUTF());
+    }
+    String text = in.readBoolean() ? in.readUTF() : null;
+    return new PostfixProgram(code, constants, slots, text);
+  }
+
+  /** Collects instructions and pools while walking a tree in post-order. */
+  private static class Builder {
+    private final List<Integer> code = new ArrayList<>();
+    private final List<Double> constants = new ArrayList<>();
+    private final List<CellLocation> slots = new ArrayList<>();
+
+    void emit(Expression expression) {
+      if (expression instanceof PostfixProgram program) {
+        for (int instruction : program.code) {
+          int opcode = instruction & 0xff;
+          if (opcode == CONSTANT) {
+            emitConstant(program.constants[instruction >>> 8]);
+          } else if (opcode == LOAD) {
+            emitLoad(program.slots[instruction >>> 8]);
+          } else {
+            code.add(opcode);
+          }
+        }
+      } else if (expression instanceof Numbers number) {
+        emitConstant(number.getValue());
+      } else if (expression instanceof CellReferences reference) {
+        emitLoad(reference.getCellLocation());
+      } else if (expression instanceof Parentheses parentheses) {
+        emit(parentheses.e);
+      } else if (expression instanceof Formula formula) {
+        emit(formula.getBody());
+      } else if (expression instanceof Memo memo) {
+        emit(memo.getExpression());
+      } else if (expression instanceof BinApp application) {
+        emit(application.getLeft());
+        emit(application.getRight());
+        switch (application.getOperator().getKind()) {
+          case PLUS -> code.add(PLUS);
+          case MINUS -> code.add(MINUS);
+          case STAR -> code.add(STAR);
+          case SLASH -> code.add(SLASH);
+          case CARET -> code.add(CARET);
+          default -> throw new IllegalArgumentException("no opcode for " + application);
+        }
+      } else {
+        throw new IllegalArgumentException("cannot compile " + expression.getClass());
+      }
+    }
+
+    private void emitConstant(double value) {
+      int index = constants.indexOf(value);
+      if (index < 0) {
+        index = constants.size();
+        constants.add(value);
+      }
+      code.add(CONSTANT | index << 8);
+    }
+
+    private void emitLoad(CellLocation location) {
+      int index = slots.indexOf(location);
+      if (index < 0) {
+        index = slots.size();
+        slots.add(location);
+      }
+      code.add(LOAD | index << 8);
+    }
+
+    PostfixProgram build(String text) {
+      int[] instructions = new int[code.size()];
+      for (int i = 0; i < instructions.length; i++) {
+        instructions[i] = code.get(i);
+      }
+      double[] pool = new double[constants.size()];
+      for (int i = 0; i < pool.length; i++) {
+        pool[i] = constants.get(i);
+      }
+      return new PostfixProgram(instructions, pool, slots.toArray(new CellLocation[0]), text);
+    }
+  }
+}
@@ -0,0 +1,87 @@
+package spreadsheet;
+
+import common.api.CellLocation;
+
+/**
+ * A rectangular block of cells, written as two opposite corners such as {@code a1:b100}.
+ *
+ * <p>A range is not an expression on its own; it is the argument of an {@link Aggregate}.
+ */
+public final class Range {
+
+  private final CellLocation from;
+  private final CellLocation to;
+  private final int top;
+  private final int left;
+  private final int bottom;
+  private final int right;
+
+  /**
+   * @param from The corner written first.
+   * @param to The corner written second.
+   * @throws InvalidSyntaxException if either corner has no row and column.
+   */
+  public Range(CellLocation from, CellLocation to) throws InvalidSyntaxException {
+    if (from.getRow() < 0 || from.getColumn() < 0 || to.getRow() < 0 || to.getColumn() < 0) {
+      throw new InvalidSyntaxException("Invalid Syntax");
+    }
+    this.from = from;
+    this.to = to;
+    this.top = Math.min(from.getRow(), to.getRow());
+    this.bottom = Math.max(from.getRow(), to.getRow());
+    this.left = Math.min(from.getColumn(), to.getColumn());
+    this.right = Math.max(from.getColumn(), to.getColumn());
+  }
+
+  public int getTop() {
+    return top;
+  }
+
+  public int getLeft() {
+    return left;
+  }
+
+  public int getBottom() {
+    return bottom;
+  }
+
+  public int getRight() {
+    return right;
+  }
+
+  /**
+   * @return the number of cells in the range.
+   */
+  public long getArea() {
+    return (long) (bottom - top + 1) * (right - left + 1);
+  }
+
+  /**
+   * @return whether the range covers the given row and column.
+   */
+  public boolean contains(int row, int column) {
+    return row >= top && row <= bottom && column >= left && column <= right;
+  }
+
+  /**
+   * @return whether the range covers the given location.
+   */
+  public boolean contains(CellLocation location) {
+    return contains(location.getRow(), location.getColumn());
+  }
+
+  @Override
+  public int hashCode() {
+    return 31 * from.hashCode() + to.hashCode();
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    return obj instanceof Range other && from.equals(other.from) && to.equals(other.to);
+  }
+
+  @Override
+  public String toString() {
+    return from + ":" + to;
+  }
+}
@@ -0,0 +1,206 @@
+package spreadsheet;
+
+import java.util.Arrays;
+
+/**
+ * Finds the formulas reading a range that covers a given cell.
+ *
+ * <p>Each range a formula reads is stored once, as a rectangle, instead of as an edge from every
+ * cell in it. The rectangles are kept in a two-level segment tree: a rectangle is split over the
+ * O(log rows) nodes of the row tree that exactly cover its rows, and within each of those over the
+ * O(log columns) nodes of that node's column tree that exactly cover its columns. A lookup walks
+ * the single path from the root to the row being looked up, and in every row node on it the single
+ * path to the column, and every rectangle met on the way covers the cell. Tree nodes are only
+ * created where some rectangle needs them, and a column tree only spans the columns its rectangles
+ * reach.
+ */
+final class RangeIndex {
+
+  private static final int[] NONE = new int[0];
+  private static final Entry[] NO_ENTRIES = new Entry[0];
+  private static final int LAST_ROW = Integer.MAX_VALUE;
+
+  private Node root;
+  private int size;
+
+  /**
+   * Records that a formula reads a range.
+   *
+   * @param range The range read.
+   * @param dependent The graph node of the formula's cell.
+   */
+  void add(Range range, int dependent) {
+    if (root == null) {
+      root = new Node();
+    }
+    add(root, 0, LAST_ROW, new Entry(range, dependent), true);
+    size++;
+  }
+
+  /** Stores an entry in the nodes below a row or column node that exactly cover its span. */
+  private static void add(Node node, int from, int to, Entry entry, boolean rows) {
+    int low = rows ? entry.range.getTop() : entry.range.getLeft();
+    int high = rows ? entry.range.getBottom() : entry.range.getRight();
+    if (low <= from && to <= high) {
+      if (rows) {
+        node.addToColumns(entry);
+      } else {
+        node.add(entry);
+      }
+      return;
+    }
+    int middle = (from + to) >>> 1;
+    if (low <= middle) {
+      if (node.left == null) {
+        node.left = new Node();
+      }
+      add(node.left, from, middle, entry, rows);
+    }
+    if (high > middle) {
+      if (node.right == null) {
+        node.right = new Node();
+      }
+      add(node.right, middle + 1, to, entry, rows);
+    }
+  }
+
+  /** Forgets one record of a formula reading a range. */
+  void remove(Range range, int dependent) {
+    if (root != null && remove(root, 0, LAST_ROW, range, dependent, true)) {
+      size--;
+    }
+  }
+
+  private static boolean remove(Node node, int from, int to, Range range, int dependent,
+      boolean rows) {
+    if (node == null) {
+      return false;
+    }
+    int low = rows ? range.getTop() : range.getLeft();
+    int high = rows ? range.getBottom() : range.getRight();
+    if (low <= from && to <= high) {
+      if (!rows) {
+        return node.remove(range, dependent);
+      }
+      return range.getRight() <= node.lastColumn
+          && remove(node.columns, 0, node.lastColumn, range, dependent, false);
+    }
+    int middle = (from + to) >>> 1;
+    boolean removed = false;
+    if (low <= middle) {
+      removed = remove(node.left, from, middle, range, dependent, rows);
+    }
+    if (high > middle) {
+      removed |= remove(node.right, middle + 1, to, range, dependent, rows);
+    }
+    return removed;
+  }
+
+  /**
+   * @return the graph nodes of the formulas reading a range that covers the given cell, once per
+   *     such range.
+   */
+  int[] covering(int row, int column) {
+    if (size == 0 || row < 0 || column < 0) {
+      return NONE;
+    }
+    int[] found = NONE;
+    int count = 0;
+    Node node = root;
+    int from = 0;
+    int to = LAST_ROW;
+    while (node != null) {
+      if (node.columns != null && column <= node.lastColumn) {
+        Node span = node.columns;
+        int left = 0;
+        int right = node.lastColumn;
+        while (span != null) {
+          if (count + span.size > found.length) {
+            found = Arrays.copyOf(found, Math.max(4, Math.max(count + span.size, count * 2)));
+          }
+          for (int i = 0; i < span.size; i++) {
+            found[count++] = span.entries[i].dependent;
+          }
+          int middle = (left + right) >>> 1;
+          if (column <= middle) {
+            span = span.left;
+            right = middle;
+          } else {
+            span = span.right;
+            left = middle + 1;
+          }
+        }
+      }
+      int middle = (from + to) >>> 1;
+      if (row <= middle) {
+        node = node.left;
+        to = middle;
+      } else {
+        node = node.right;
+        from = middle + 1;
+      }
+    }
+    return count == found.length ? found : Arrays.copyOf(found, count);
+  }
+
+  /**
+   * @return whether any formula reads a range covering the given cell.
+   */
+  boolean covers(int row, int column) {
+    return covering(row, column).length > 0;
+  }
+
+  private static final class Entry {
+    final Range range;
+    final int dependent;
+
+    Entry(Range range, int dependent) {
+      this.range = range;
+      this.dependent = dependent;
+    }
+  }
+
+  /** A node of the row tree, or of the column tree of a row node. */
+  private static final class Node {
+    Node left;
+    Node right;
+    // In a row node: the tree over the columns 0 to lastColumn of the entries whose rows it covers.
+    Node columns;
+    int lastColumn;
+    // In a column node: the entries whose rows and columns it covers.
+    Entry[] entries = NO_ENTRIES;
+    int size;
+
+    void addToColumns(Entry entry) {
+      if (columns == null) {
+        columns = new Node();
+      }
+      while (lastColumn < entry.range.getRight()) {
+        // Doubling the span keeps the old tree as the left half of the new one, unchanged.
+        Node grown = new Node();
+        grown.left = columns;
+        columns = grown;
+        lastColumn = lastColumn * 2 + 1;
+      }
+      RangeIndex.add(columns, 0, lastColumn, entry, false);
+    }
+
+    void add(Entry entry) {
+      if (size == entries.length) {
+        entries = Arrays.copyOf(entries, Math.max(2, size * 2));
+      }
+      entries[size++] = entry;
+    }
+
+    boolean remove(Range range, int dependent) {
+      for (int i = 0; i < size; i++) {
+        if (entries[i].dependent == dependent && entries[i].range.equals(range)) {
+          entries[i] = entries[--size];
+          entries[size] = null;
+          return true;
+        }
+      }
+      return false;
+    }
+  }
+}
@@ -0,0 +1,255 @@
+package spreadsheet;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Keeps the aggregates of the ranges read by a spreadsheet's formulas up to date as single cells
+ * change, so that reading {@code sum(a1:a1000000)} after one edit does not add up a million cells.
+ *
+ * <p>Each distinct range has one {@link Summary}, shared by every formula reading it. A summary
+ * holds the count and sum of the non-empty cells of its range, which are moved by the difference
+ * between a cell's old and new value. The sum is compensated, so that removing a large value does
+ * not take the small ones added next to it along. For MIN and MAX it also holds the values themselves in a
+ * sorted multiset, which takes O(log n) to update and to ask for either end.
+ *
+ * <p>A summary is built by scanning its range the first time it is read, and from then on follows
+ * the changes the spreadsheet reports to {@link #changed}. Cells that are only marked dirty, by
+ * lazy evaluation, are remembered and brought up to date the next time the summary is read.
+ */
+final class RangeSummaries {
+
+  private final Map<Range, Summary> byRange = new HashMap<>();
+  private final RangeIndex index = new RangeIndex();
+  private Summary[] byId = new Summary[4];
+  private int[] free = new int[4];
+  private int freeCount;
+  private int size;
+
+  /**
+   * Records that a formula reads a range.
+   *
+   * @param range The range read.
+   * @param ordered Whether the formula needs the range's minimum or maximum.
+   */
+  void acquire(Range range, boolean ordered) {
+    Summary summary = byRange.get(range);
+    if (summary == null) {
+      int id = freeCount > 0 ? free[--freeCount] : size++;
+      if (id == byId.length) {
+        byId = Arrays.copyOf(byId, id * 2);
+      }
+      summary = byId[id] = new Summary(range, id);
+      byRange.put(range, summary);
+      index.add(range, id);
+    }
+    summary.acquire(ordered);
+  }
+
+  /** Forgets one formula reading a range, dropping the range's summary after the last one. */
+  void release(Range range, boolean ordered) {
+    Summary summary = byRange.get(range);
+    if (summary != null && summary.release(ordered)) {
+      byRange.remove(range);
+      index.remove(range, summary.id);
+      byId[summary.id] = null;
+      if (freeCount == free.length) {
+        free = Arrays.copyOf(free, freeCount * 2);
+      }
+      free[freeCount++] = summary.id;
+    }
+  }
+
+  /**
+   * @return the summary of a range read by some formula, or null if no formula reads it.
+   */
+  Summary get(Range range) {
+    return byRange.get(range);
+  }
+
+  /**
+   * Moves the summaries of the ranges covering a location from its old contents to its new ones.
+   *
+   * @param wasPresent Whether the location held a non-empty cell or a stored constant before.
+   * @param previous The value it had before, if it was present.
+   * @param present Whether it holds a non-empty cell or a stored constant now.
+   * @param value The value it has now, if it is present.
+   */
+  void changed(int row, int column, boolean wasPresent, double previous, boolean present,
+      double value) {
+    if (byRange.isEmpty()) {
+      return;
+    }
+    for (int id : index.covering(row, column)) {
+      byId[id].changed(wasPresent, previous, present, value);
+    }
+  }
+
+  /** Notes that a cell's value is out of date, to be refreshed before the ranges covering it are read. */
+  void stale(Cell c) {
+    if (byRange.isEmpty()) {
+      return;
+    }
+    for (int id : index.covering(c.getLocation().getRow(), c.getLocation().getColumn())) {
+      byId[id].stale(c);
+    }
+  }
+
+  /**
+   * @return the number of ranges with a summary.
+   */
+  int size() {
+    return byRange.size();
+  }
+
+  /**
+   * The count, sum and possibly the ordered values of the non-empty cells in one range.
+   *
+   * <p>Summaries are updated from whichever thread evaluates a cell in their range, so all access
+   * is synchronized.
+   */
+  static final class Summary {
+    private final Range range;
+    private final int id;
+    private int readers;
+    private int orderedReaders;
+    private boolean built;
+    private long count;
+    private double sum;
+    // The low-order part of the sum lost to rounding, added back when the sum is read.
+    private double compensation;
+    // Each value with its multiplicity, for MIN and MAX.
+    private TreeMap<Double, Integer> values;
+    private final List<Cell> stale = new ArrayList<>();
+
+    Summary(Range range, int id) {
+      this.range = range;
+      this.id = id;
+    }
+
+    synchronized void acquire(boolean ordered) {
+      readers++;
+      if (ordered && orderedReaders++ == 0) {
+        // The values were not kept so far, so they have to be collected by a fresh scan.
+        built = false;
+      }
+    }
+
+    /**
+     * @return whether no formula reads the range any more.
+     */
+    synchronized boolean release(boolean ordered) {
+      if (ordered && --orderedReaders == 0) {
+        values = null;
+      }
+      return --readers == 0;
+    }
+
+    synchronized void stale(Cell c) {
+      if (built) {
+        stale.add(c);
+      }
+    }
+
+    synchronized void changed(boolean wasPresent, double previous, boolean present,
+        double value) {
+      if (!built) {
+        return;
+      }
+      if (wasPresent && !Double.isFinite(previous) || present && !Double.isFinite(value)) {
+        // Infinities do not cancel out again, so start over from the cells themselves.
+        built = false;
+        stale.clear();
+        return;
+      }
+      if (wasPresent) {
+        count--;
+        add(-previous);
+        if (values != null) {
+          values.computeIfPresent(previous, (v, n) -> n == 1 ? null : n - 1);
+        }
+      }
+      if (present) {
+        count++;
+        add(value);
+        if (values != null) {
+          values.merge(value, 1, Integer::sum);
+        }
+      }
+      if (count == 0) {
+        // Shed whatever rounding error the differences left behind.
+        sum = 0.0;
+        compensation = 0.0;
+      } else if (!Double.isFinite(sum)) {
+        // A total that overflowed does not come back by subtracting either.
+        built = false;
+        stale.clear();
+      }
+    }
+
+    /** Adds a value to the sum, keeping what rounding drops in the compensation. */
+    private void add(double value) {
+      double total = sum + value;
+      if (Math.abs(sum) >= Math.abs(value)) {
+        compensation += (sum - total) + value;
+      } else {
+        compensation += (value - total) + sum;
+      }
+      sum = total;
+    }
+
+    /**
+     * Brings the summary up to date and copies it into a tally.
+     *
+     * @param spreadsheet The spreadsheet the range belongs to.
+     * @param tally The tally to fill in.
+     */
+    synchronized void read(Spreadsheet spreadsheet, Aggregate.Tally tally) {
+      if (!built) {
+        build(spreadsheet);
+      } else if (!stale.isEmpty()) {
+        // Refreshing a cell reports its new value back to this summary, which may clear the list
+        // or start the summary over, so the cells are taken out of it first.
+        List<Cell> refreshing = new ArrayList<>(stale);
+        stale.clear();
+        for (Cell c : refreshing) {
+          if (c.getId() >= 0 && c.isDirty()) {
+            spreadsheet.refresh(c);
+          }
+        }
+        if (!built) {
+          build(spreadsheet);
+        }
+      }
+      // Infinities and NaN make the compensation meaningless, and the sum is already final.
+      double total = Double.isFinite(sum) ? sum + compensation : sum;
+      if (values == null || values.isEmpty()) {
+        tally.set(count, total, 0.0, 0.0);
+      } else {
+        double max = values.lastKey();
+        // NaN sorts last, and like Math.min a NaN minimum wins over everything else.
+        tally.set(count, total, Double.isNaN(max) ? max : values.firstKey(), max);
+      }
+    }
+
+    private void build(Spreadsheet spreadsheet) {
+      count = 0;
+      sum = 0.0;
+      compensation = 0.0;
+      values = orderedReaders > 0 ? new TreeMap<>() : null;
+      stale.clear();
+      spreadsheet.forEachValue(range, value -> {
+        count++;
+        add(value);
+        if (values != null) {
+          values.merge(value, 1, Integer::sum);
+        }
+      });
+      built = true;
+    }
+  }
+}
@@ -0,0 +1,510 @@
+package spreadsheet;
+
+import common.api.CellLocation;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Recalculates the cells affected by a change, in dependency order.
+ *
+ * <p>The affected cone of a cell is the cell itself together with every cell that transitively
+ * depends on it. The cone is ordered topologically, so each cell in it is evaluated exactly once,
+ * and only after every cell it references inside the cone.
+ *
+ * <p>For lazily evaluated spreadsheets the same graph is walked in two halves instead: edits only
+ * mark their cone dirty, and reads pull the dirty precedents of the cell being read into date.
+ * Both halves keep the invariant that every dependent of a dirty cell is dirty too.
+ */
+class Recalculator {
+
+  // How many cells settle() visits between checks of whether to stop early.
+  static final int STOP_CHECK_INTERVAL = 64;
+
+  private final Spreadsheet spreadsheet;
+  private ForkJoinPool pool;
+  private int parallelThreshold;
+  private long evaluations;
+  private long skippedEvaluations;
+  private long passes;
+  private volatile long pass;
+  // Scratch space for levels(), indexed by graph node and all zero between calls.
+  private int[] pending = new int[0];
+  // Set on pool threads while they evaluate cells for the edit holding the spreadsheet's lock.
+  private final ThreadLocal<Boolean> evaluatingOnPool = ThreadLocal.withInitial(() -> false);
+
+  Recalculator(Spreadsheet spreadsheet) {
+    this.spreadsheet = spreadsheet;
+  }
+
+  /**
+   * Lets recalculation evaluate the cells of a dependency level concurrently.
+   *
+   * @param pool The pool to evaluate on, or null to always recalculate on the calling thread.
+   * @param threshold The smallest cone worth spreading over the pool.
+   */
+  void setPool(ForkJoinPool pool, int threshold) {
+    this.pool = pool;
+    this.parallelThreshold = threshold;
+  }
+
+  /**
+   * Re-evaluates the cell at the given location and whatever downstream of it is affected.
+   *
+   * <p>The root is always evaluated. Any other cell is only evaluated if one of its precedents
+   * changed value during this pass; a change is signalled by marking the dependents of the changed
+   * cell dirty, so propagation stops wherever a value comes out the same as before.
+   *
+   * <p>Cells in the same level only read values from earlier levels, so when a pool is configured
+   * and the cone is large enough each level is evaluated in parallel, with the same results as the
+   * sequential path.
+   *
+   * @param start The location whose value (or expression) has changed.
+   */
+  void recalculateFrom(CellLocation start) {
+    if (spreadsheet.getCell(start) != null) {
+      recalculateFrom(List.of(start));
+    }
+  }
+
+  /**
+   * Re-evaluates several edited cells and whatever downstream of them is affected, in one pass.
+   *
+   * @param starts The locations whose values (or expressions) have changed; those without a cell
+   *     are skipped.
+   */
+  void recalculateFrom(Collection<CellLocation> starts) {
+    long outer = pass;
+    pass = ++passes;
+    try {
+      evaluateCone(starts);
+    } finally {
+      pass = outer;
+    }
+  }
+
+  private void evaluateCone(Collection<CellLocation> starts) {
+    List<List<Cell>> levels = levels(starts);
+    for (CellLocation start : starts) {
+      Cell root = spreadsheet.getCell(start);
+      if (root != null) {
+        root.markDirty();
+      }
+    }
+
+    int total = size(levels);
+    boolean parallel = pool != null && total >= parallelThreshold;
+    int evaluated = 0;
+    for (List<Cell> level : levels) {
+      if (parallel && level.size() > EvaluateSlice.GRAIN) {
+        refreshReads(level);
+        evaluated += pool.invoke(new EvaluateSlice(this, level, 0, level.size()));
+      } else {
+        evaluated += evaluate(level, 0, level.size());
+      }
+    }
+    evaluations += evaluated;
+    skippedEvaluations += total - evaluated;
+  }
+
+  /**
+   * Brings the dirty cells downstream of some cells up to date, a bounded amount of work at a
+   * time, for cones that have already been marked dirty.
+   *
+   * <p>The cones are walked depth-first from the work stack. Every dirty cell reached is refreshed
+   * like a lazy read, which first evaluates whichever of its precedents are still dirty, so the
+   * walk needs no topological order and nothing has to be computed before the first evaluation.
+   * The walk may stop whenever the given condition holds, after every
+   * {@link #STOP_CHECK_INTERVAL} cells; the stack and the set of cells already reached are then
+   * left holding exactly what remains, and a later call carries on from there. Cells that edits in
+   * between have dropped are skipped, and cells they have brought up to date are not evaluated
+   * again.
+   *
+   * @param work The cells still to visit.
+   * @param reached Every cell that has been pushed on the stack, so none is pushed twice.
+   * @param stop Whether to stop before the next group of cells.
+   * @return false if the walk stopped before the stack was empty.
+   */
+  boolean settle(Deque<Cell> work, Set<Cell> reached, BooleanSupplier stop) {
+    long outer = pass;
+    pass = ++passes;
+    DependencyGraph graph = spreadsheet.getGraph();
+    int visited = 0;
+    try {
+      while (!work.isEmpty()) {
+        Cell cell = work.pop();
+        if (spreadsheet.getCell(cell.getLocation()) != cell) {
+          continue;
+        }
+        if (cell.isDirty()) {
+          evaluations += refreshPrecedents(cell);
+        }
+        int id = cell.getId();
+        for (int slot = 0, slots = graph.dependentSlots(id); slot < slots; slot++) {
+          int dependent = graph.dependent(id, slot);
+          Cell next = dependent < 0 ? null : graph.getCell(dependent);
+          if (next != null && reached.add(next)) {
+            work.push(next);
+          }
+        }
+        for (int dependent : spreadsheet.rangeDependents(cell)) {
+          Cell next = graph.getCell(dependent);
+          if (reached.add(next)) {
+            work.push(next);
+          }
+        }
+        if (++visited % STOP_CHECK_INTERVAL == 0 && !work.isEmpty() && stop.getAsBoolean()) {
+          return false;
+        }
+      }
+      return true;
+    } finally {
+      pass = outer;
+    }
+  }
+
+  /**
+   * Brings whatever the dirty cells of a level read up to date, before the level is split over the
+   * pool. Precedents inside the cone are clean by then, but cells left dirty by lazy or asynchronous
+   * edits outside of it are only refreshed on demand, which must not happen on several pool threads
+   * at once.
+   */
+  private void refreshReads(List<Cell> level) {
+    DependencyGraph graph = spreadsheet.getGraph();
+    Aggregate.Tally tally = new Aggregate.Tally();
+    for (Cell cell : level) {
+      if (!cell.isDirty()) {
+        continue;
+      }
+      for (int slot = 0, slots = graph.precedentSlots(cell.getId()); slot < slots; slot++) {
+        int id = graph.precedent(cell.getId(), slot);
+        Cell precedent = id < 0 ? null : graph.getCell(id);
+        if (precedent != null && precedent.isDirty()) {
+          refresh(precedent);
+        }
+      }
+      // Reading a range's summary refreshes the stale cells inside it.
+      for (Range range : Aggregate.rangesOf(cell.getParsedExpression())) {
+        spreadsheet.tally(range, tally);
+      }
+    }
+  }
+
+  /**
+   * Evaluates the dirty cells in part of a level, marking the dependents of changed cells dirty.
+   *
+   * @return the number of cells evaluated.
+   */
+  private int evaluate(List<Cell> level, int from, int to) {
+    int evaluated = 0;
+    for (int i = from; i < to; i++) {
+      Cell cell = level.get(i);
+      if (!cell.isDirty()) {
+        continue;
+      }
+      evaluated++;
+      if (cell.evaluate()) {
+        DependencyGraph graph = spreadsheet.getGraph();
+        int id = cell.getId();
+        for (int slot = 0, slots = graph.dependentSlots(id); slot < slots; slot++) {
+          int dependent = graph.dependent(id, slot);
+          if (dependent >= 0) {
+            graph.getCell(dependent).markDirty();
+          }
+        }
+        for (int dependent : spreadsheet.rangeDependents(cell)) {
+          graph.getCell(dependent).markDirty();
+        }
+      }
+    }
+    return evaluated;
+  }
+
+  /**
+   * @return whether the calling thread is a pool thread evaluating cells for a recalculation.
+   */
+  boolean isEvaluatingOnPool() {
+    return evaluatingOnPool.get();
+  }
+
+  /**
+   * @return a number identifying the recalculation pass in progress, or 0 outside of any pass.
+   */
+  long getPass() {
+    return pass;
+  }
+
+  /**
+   * @return the number of cells evaluated by eager recalculation so far.
+   */
+  long getEvaluations() {
+    return evaluations;
+  }
+
+  /**
+   * @return the number of affected cells that eager recalculation did not need to evaluate, because
+   *     none of their precedents changed value.
+   */
+  long getSkippedEvaluations() {
+    return skippedEvaluations;
+  }
+
+  /**
+   * Collects the affected cone of a cell and sorts it topologically.
+   *
+   * @param start The location whose value (or expression) has changed.
+   * @return the cells of the cone, each appearing after all of its precedents in the cone.
+   */
+  List<Cell> order(CellLocation start) {
+    List<List<Cell>> levels = levels(start);
+    List<Cell> order = new ArrayList<>(size(levels));
+    levels.forEach(order::addAll);
+    return order;
+  }
+
+  /**
+   * Collects the affected cone of a cell and partitions it into dependency levels (Kahn's algorithm,
+   * one frontier at a time).
+   *
+   * @param start The location whose value (or expression) has changed.
+   * @return the levels of the cone, where each cell's precedents in the cone are all in earlier
+   *     levels.
+   */
+  List<List<Cell>> levels(CellLocation start) {
+    return spreadsheet.getCell(start) == null ? List.of() : levels(List.of(start));
+  }
+
+  /**
+   * Collects the union of the affected cones of several cells and partitions it into levels.
+   *
+   * @param starts The locations whose values (or expressions) have changed; those without a cell
+   *     are skipped.
+   * @return the levels of the combined cone, where each cell's precedents in the cone are all in
+   *     earlier levels.
+   */
+  List<List<Cell>> levels(Collection<CellLocation> starts) {
+    // Count, for every cell in the cone, how many of its precedents are also in the cone. Counts
+    // are kept off by one, so that 0 can mean the cell is not in the cone.
+    DependencyGraph graph = spreadsheet.getGraph();
+    if (pending.length < graph.capacity()) {
+      pending = new int[Math.max(graph.capacity(), pending.length * 2)];
+    }
+    Deque<Cell> work = new ArrayDeque<>();
+    List<Cell> roots = new ArrayList<>();
+    for (CellLocation start : starts) {
+      Cell root = spreadsheet.getCell(start);
+      if (root != null && pending[root.getId()] == 0) {
+        pending[root.getId()] = 1;
+        roots.add(root);
+        work.push(root);
+      }
+    }
+    while (!work.isEmpty()) {
+      Cell cell = work.pop();
+      int id = cell.getId();
+      for (int slot = 0, slots = graph.dependentSlots(id); slot < slots; slot++) {
+        int dependent = graph.dependent(id, slot);
+        if (dependent >= 0 && pending[dependent]++ == 0) {
+          pending[dependent]++;
+          work.push(graph.getCell(dependent));
+        }
+      }
+      for (int dependent : spreadsheet.rangeDependents(cell)) {
+        if (pending[dependent]++ == 0) {
+          pending[dependent]++;
+          work.push(graph.getCell(dependent));
+        }
+      }
+    }
+
+    List<List<Cell>> levels = new ArrayList<>();
+    List<Cell> ready = new ArrayList<>();
+    for (Cell root : roots) {
+      if (pending[root.getId()] == 1) {
+        ready.add(root);
+      }
+    }
+    while (!ready.isEmpty()) {
+      levels.add(ready);
+      List<Cell> next = new ArrayList<>();
+      for (Cell cell : ready) {
+        int id = cell.getId();
+        for (int slot = 0, slots = graph.dependentSlots(id); slot < slots; slot++) {
+          int dependent = graph.dependent(id, slot);
+          if (dependent >= 0 && --pending[dependent] == 1) {
+            next.add(graph.getCell(dependent));
+          }
+        }
+        for (int dependent : spreadsheet.rangeDependents(cell)) {
+          if (--pending[dependent] == 1) {
+            next.add(graph.getCell(dependent));
+          }
+        }
+      }
+      ready = next;
+    }
+    // Every cell of the cone is down to 1 now; leave the counts clear for the next pass.
+    for (List<Cell> level : levels) {
+      for (Cell cell : level) {
+        pending[cell.getId()] = 0;
+      }
+    }
+    return levels;
+  }
+
+  private static int size(List<List<Cell>> levels) {
+    int size = 0;
+    for (List<Cell> level : levels) {
+      size += level.size();
+    }
+    return size;
+  }
+
+  /**
+   * Marks the cell at the given location and everything downstream of it as dirty.
+   *
+   * <p>Cells that are already dirty are not revisited, as their dependents must be dirty already.
+   *
+   * @param start The location whose value (or expression) has changed.
+   */
+  void markDirty(CellLocation start) {
+    if (spreadsheet.getCell(start) != null) {
+      markDirty(List.of(start));
+    }
+  }
+
+  /**
+   * Marks several edited cells and everything downstream of them as dirty.
+   *
+   * @param starts The locations whose values (or expressions) have changed; those without a cell
+   *     are skipped.
+   */
+  void markDirty(Collection<CellLocation> starts) {
+    Deque<Cell> work = new ArrayDeque<>();
+    for (CellLocation start : starts) {
+      Cell root = spreadsheet.getCell(start);
+      if (root == null) {
+        continue;
+      }
+      if (!root.isDirty()) {
+        spreadsheet.valueStale(root);
+      }
+      root.markDirty();
+      work.push(root);
+    }
+    DependencyGraph graph = spreadsheet.getGraph();
+    while (!work.isEmpty()) {
+      Cell cell = work.pop();
+      int id = cell.getId();
+      for (int slot = 0, slots = graph.dependentSlots(id); slot < slots; slot++) {
+        int location = graph.dependent(id, slot);
+        Cell dependent = location < 0 ? null : graph.getCell(location);
+        if (dependent != null && !dependent.isDirty()) {
+          spreadsheet.valueStale(dependent);
+          dependent.markDirty();
+          work.push(dependent);
+        }
+      }
+      for (int location : spreadsheet.rangeDependents(cell)) {
+        Cell dependent = graph.getCell(location);
+        if (!dependent.isDirty()) {
+          spreadsheet.valueStale(dependent);
+          dependent.markDirty();
+          work.push(dependent);
+        }
+      }
+    }
+  }
+
+  /**
+   * Brings a dirty cell up to date, first evaluating whichever of its precedents are dirty.
+   *
+   * <p>The precedents are visited depth-first in post-order, so by the time a cell is evaluated all
+   * of the values it reads are clean and no evaluation has to recurse into another. The graph is
+   * acyclic, so a dirty precedent can never already be on the current path.
+   *
+   * @param target The cell about to be read.
+   */
+  void refresh(Cell target) {
+    long outer = pass;
+    pass = ++passes;
+    try {
+      refreshPrecedents(target);
+    } finally {
+      pass = outer;
+    }
+  }
+
+  /**
+   * @return the number of cells evaluated.
+   */
+  private int refreshPrecedents(Cell target) {
+    DependencyGraph graph = spreadsheet.getGraph();
+    Deque<Cell> path = new ArrayDeque<>();
+    int evaluated = 0;
+    // The next precedent slot to look at for each cell on the path.
+    int[] next = new int[16];
+    path.push(target);
+    while (!path.isEmpty()) {
+      int depth = path.size() - 1;
+      int id = path.peek().getId();
+      if (next[depth] < graph.precedentSlots(id)) {
+        int precedent = graph.precedent(id, next[depth]++);
+        Cell cell = precedent < 0 ? null : graph.getCell(precedent);
+        if (cell != null && cell.isDirty()) {
+          if (depth + 1 == next.length) {
+            next = Arrays.copyOf(next, next.length * 2);
+          }
+          next[depth + 1] = 0;
+          path.push(cell);
+        }
+      } else {
+        path.pop().evaluate();
+        evaluated++;
+      }
+    }
+    return evaluated;
+  }
+
+  /** Evaluates a slice of one dependency level, splitting it in half until it is small enough. */
+  private static class EvaluateSlice extends RecursiveTask<Integer> {
+    static final int GRAIN = 256;
+
+    private final Recalculator recalculator;
+    private final List<Cell> level;
+    private final int from;
+    private final int to;
+
+    EvaluateSlice(Recalculator recalculator, List<Cell> level, int from, int to) {
+      this.recalculator = recalculator;
+      this.level = level;
+      this.from = from;
+      this.to = to;
+    }
+
+    @Override
+    protected Integer compute() {
+      if (to - from <= GRAIN) {
+        boolean outer = recalculator.evaluatingOnPool.get();
+        recalculator.evaluatingOnPool.set(true);
+        try {
+          return recalculator.evaluate(level, from, to);
+        } finally {
+          recalculator.evaluatingOnPool.set(outer);
+        }
+      }
+      int middle = (from + to) >>> 1;
+      EvaluateSlice left = new EvaluateSlice(recalculator, level, from, middle);
+      left.fork();
+      int right = new EvaluateSlice(recalculator, level, middle, to).compute();
+      return left.join() + right;
+    }
+  }
+}
@@ -0,0 +1,83 @@
+package spreadsheet;
+
+import common.api.Expression;
+
+/**
+ * Rewrites parsed expressions into equivalent trees that are cheaper to evaluate.
+ *
+ * <p>Constant subexpressions are folded into a single number, {@link Parentheses} nodes are
+ * dropped, and operations with an identity operand ({@code x+0}, {@code x-0}, {@code x*1},
+ * {@code x/1} and {@code x^1}) are replaced by their other operand. A rewrite never removes a cell
+ * reference, so the simplified tree has the same dependencies as the one it came from; this is why
+ * {@code x*0} is left alone. Apart from {@code -0.0+0}, which is {@code 0.0}, every rewrite gives
+ * exactly the value of the original.
+ */
+final class Simplifier {
+
+  private Simplifier() {}
+
+  /**
+   * Simplifies a parsed expression.
+   *
+   * @param expression The expression as parsed.
+   * @return the expression itself if it cannot be simplified, or otherwise a {@link Formula} that
+   *     evaluates the simplified tree and prints as the original one.
+   */
+  static Expression simplify(Expression expression) {
+    Expression body = rewrite(expression);
+    return body == expression ? expression : new Formula(expression, body);
+  }
+
+  /** Returns the node itself when nothing below it changes, so unchanged trees are not copied. */
+  private static Expression rewrite(Expression expression) {
+    if (expression instanceof Parentheses parentheses) {
+      return rewrite(parentheses.e);
+    }
+    if (!(expression instanceof BinApp application)) {
+      return expression;
+    }
+    Expression left = rewrite(application.getLeft());
+    Expression right = rewrite(application.getRight());
+    if (left instanceof Numbers && right instanceof Numbers) {
+      return new Numbers(new BinApp(application.getOperator(), left, right).evaluate(null));
+    }
+    switch (application.getOperator().getKind()) {
+      case PLUS -> {
+        if (isConstant(left, 0)) {
+          return right;
+        }
+        if (isConstant(right, 0)) {
+          return left;
+        }
+      }
+      case STAR -> {
+        if (isConstant(left, 1)) {
+          return right;
+        }
+        if (isConstant(right, 1)) {
+          return left;
+        }
+      }
+      case MINUS -> {
+        if (isConstant(right, 0)) {
+          return left;
+        }
+      }
+      case SLASH, CARET -> {
+        if (isConstant(right, 1)) {
+          return left;
+        }
+      }
+      default -> {
+      }
+    }
+    if (left == application.getLeft() && right == application.getRight()) {
+      return application;
+    }
+    return new BinApp(application.getOperator(), left, right);
+  }
+
+  private static boolean isConstant(Expression expression, double value) {
+    return expression instanceof Numbers number && number.getValue() == value;
+  }
+}
@@ -0,0 +1,76 @@
+package spreadsheet;
+
+import common.api.BasicSpreadsheet;
+import common.api.CellLocation;
+import common.api.Expression;
+import java.util.Set;
+
+/**
+ * A read-only view of a spreadsheet as it was at one committed version.
+ *
+ * <p>Reads see the contents every cell had when the snapshot was taken, however the spreadsheet
+ * has been edited since, and never wait for an edit in progress. Any attempt to change the view
+ * throws {@link UnsupportedOperationException}.
+ */
+final class Snapshot implements BasicSpreadsheet {
+
+  private final Spreadsheet spreadsheet;
+  private final long version;
+
+  Snapshot(Spreadsheet spreadsheet, long version) {
+    this.spreadsheet = spreadsheet;
+    this.version = version;
+  }
+
+  /**
+   * @return the version of the spreadsheet this snapshot shows.
+   */
+  long getVersion() {
+    return version;
+  }
+
+  @Override
+  public double getCellValue(CellLocation location) {
+    return spreadsheet.contentsAt(location, version).getValue();
+  }
+
+  @Override
+  public String getCellDisplay(CellLocation location) {
+    VersionLog.Version contents = spreadsheet.contentsAt(location, version);
+    return contents.getExpression() == null ? "" : Double.toString(contents.getValue());
+  }
+
+  @Override
+  public String getCellExpression(CellLocation location) {
+    Expression expression = spreadsheet.contentsAt(location, version).getExpression();
+    return expression == null ? "" : expression.toString();
+  }
+
+  @Override
+  public void findCellReferences(CellLocation subject, Set<CellLocation> target) {
+    Expression expression = spreadsheet.contentsAt(subject, version).getExpression();
+    if (expression != null) {
+      target.addAll(expression.getCellReferences());
+    }
+  }
+
+  @Override
+  public void setCellExpression(CellLocation location, String expression) {
+    throw new UnsupportedOperationException("snapshots are read-only");
+  }
+
+  @Override
+  public void addDependency(CellLocation dependent, CellLocation dependency) {
+    throw new UnsupportedOperationException("snapshots are read-only");
+  }
+
+  @Override
+  public void removeDependency(CellLocation dependent, CellLocation dependency) {
+    throw new UnsupportedOperationException("snapshots are read-only");
+  }
+
+  @Override
+  public void recalculate(CellLocation location) {
+    throw new UnsupportedOperationException("snapshots are read-only");
+  }
+}
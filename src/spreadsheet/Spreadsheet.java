@@ -3,20 +3,193 @@ package spreadsheet;
 import common.api.BasicSpreadsheet;
 import common.api.CellLocation;
 import common.api.Expression;
+import java.lang.invoke.VarHandle;
+import java.time.Duration;
+import java.util.AbstractMap;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.DoubleConsumer;
 
+/**
+ * A spreadsheet of cells holding formulas over each other's values.
+ *
+ * <p>Any number of threads may read a spreadsheet while one thread edits it. Edits, and reads that
+ * have to bring a lazily evaluated cell up to date, hold a {@link StampedLock} for writing. Value
+ * and display reads first try an optimistic read, which takes no lock at all and is only retried
+ * under the read lock if an edit ran in the meantime. Configuration setters are not synchronized
+ * and are meant to be called before a spreadsheet is shared.
+ *
+ * <p>Every release of the write lock commits a new version. {@link #snapshot()} gives a view of
+ * the current version that later edits do not disturb, backed by a {@link VersionLog} of the
+ * contents those edits replaced.
+ */
 public class Spreadsheet implements BasicSpreadsheet {
   //
   // start replacing
   //
 
   private Map<CellLocation, Cell> state;
-  private CycleDetector cycleDetector = new CycleDetector(this);
+  private final StampedLock lock = new StampedLock();
+  // The thread holding the write lock, whose own reads must not wait for it.
+  private volatile Thread writer;
+  // Threads waiting for the write lock, which background recalculation gives way to.
+  private final AtomicInteger waitingWriters = new AtomicInteger();
+  // The last committed version; the edit holding the write lock commits the next one.
+  private volatile long version;
+  private final VersionLog versions = new VersionLog();
+  private final DependencyGraph graph = new DependencyGraph();
+  private final RangeIndex ranges = new RangeIndex();
+  private final RangeSummaries summaries = new RangeSummaries();
+  // Graph nodes of locations that are referenced by some formula but hold no cell of their own.
+  private final Map<CellLocation, Integer> referencedOnly = new HashMap<>();
+  private TopologicalOrder order = new TopologicalOrder(this);
+  private Recalculator recalculator = new Recalculator(this);
+  private final EvaluationMode mode;
+  private final ColumnStore columns;
+  private int compileThreshold;
+  private boolean compactFormulas;
+  private ExpressionInterner interner;
+  private Executor recalculationExecutor = ForkJoinPool.commonPool();
+  private long recalculationBudget;
+  // Cells edited by setCellExpressionAsync whose dependents are dirty but not yet recalculated,
+  // and the future that completes once they are.
+  private Set<CellLocation> unsettled = new HashSet<>();
+  private CompletableFuture<Boolean> settled;
+  // Where background recalculation stopped: the cells it has still to visit, and all it reached.
+  private final Deque<Cell> settling = new ArrayDeque<>();
+  private final Set<Cell> reached = Collections.newSetFromMap(new IdentityHashMap<>());
+  // Cells to reclaim once the batch being applied has been recalculated, or null outside a batch.
+  private Set<Cell> reclaimLater;
 
   public Spreadsheet() {
-    this.state = new HashMap<>();
+    this(EvaluationMode.EAGER);
+  }
+
+  /**
+   * Construct an empty spreadsheet that evaluates cells according to the given mode.
+   *
+   * @param mode Whether edits recalculate their dependents straight away or only on demand.
+   */
+  public Spreadsheet(EvaluationMode mode) {
+    this(mode, Storage.CELLS);
+  }
+
+  /**
+   * Construct an empty spreadsheet that evaluates cells according to the given mode and keeps
+   * them in the given kind of storage.
+   *
+   * @param mode Whether edits recalculate their dependents straight away or only on demand.
+   * @param storage How the cells of the spreadsheet are stored.
+   */
+  public Spreadsheet(EvaluationMode mode, Storage storage) {
+    // Optimistic readers look cells up while an edit may be inserting others.
+    this.state = new ConcurrentHashMap<>();
+    this.mode = mode;
+    this.columns = storage == Storage.COLUMNS ? new ColumnStore() : null;
+  }
+
+  /**
+   * Lets eager recalculation evaluate independent cells of a large affected cone concurrently.
+   *
+   * @param pool The pool to evaluate on, or null to always recalculate on the calling thread.
+   * @param threshold The smallest number of affected cells worth spreading over the pool.
+   */
+  public void setRecalculationPool(ForkJoinPool pool, int threshold) {
+    recalculator.setPool(pool, threshold);
+  }
+
+  /**
+   * Sets where the dependents of asynchronous edits are recalculated.
+   *
+   * @param executor The executor to run recalculation on; the common fork-join pool by default.
+   */
+  public void setRecalculationExecutor(Executor executor) {
+    this.recalculationExecutor = executor;
+  }
+
+  /**
+   * Bounds how long background recalculation holds the write lock at a time. A task that runs out
+   * of time leaves the cells it has not reached dirty and hands the rest to a new task, so edits
+   * and reads waiting for the lock get it in between.
+   *
+   * @param budget The longest a task may recalculate for, or null to let it run to the end.
+   */
+  public void setRecalculationBudget(Duration budget) {
+    this.recalculationBudget = budget == null ? 0L : budget.toNanos();
+  }
+
+  /**
+   * Compiles the formula of any cell evaluated at least the given number of times, so that later
+   * evaluations run straight-line code instead of walking the expression tree.
+   *
+   * @param threshold The number of evaluations after which a cell is compiled, or 0 to never
+   *     compile.
+   */
+  public void setCompileThreshold(int threshold) {
+    this.compileThreshold = threshold;
+  }
+
+  int getCompileThreshold() {
+    return compileThreshold;
+  }
+
+  /**
+   * Stores formulas entered from now on as flat {@link PostfixProgram}s rather than as trees of
+   * expression nodes, which takes a fraction of the memory and evaluates without pointer chasing.
+   *
+   * @param compact Whether to store new formulas in the compact form.
+   */
+  public void setCompactFormulas(boolean compact) {
+    this.compactFormulas = compact;
+  }
+
+  /**
+   * Shares equal subexpressions between the formulas entered from now on, so that a subexpression
+   * repeated across many cells is stored once.
+   *
+   * @param shared Whether to share the nodes of new formulas.
+   * @param memoized Whether a shared subexpression that reads cells should also be evaluated only
+   *     once per recalculation, however many cells use it; this costs a check on every evaluation.
+   */
+  public void setSharedExpressions(boolean shared, boolean memoized) {
+    this.interner = shared ? new ExpressionInterner(memoized) : null;
+  }
+
+  /**
+   * @return a number identifying the recalculation pass in progress, or 0 outside of any pass.
+   */
+  long getPass() {
+    return recalculator.getPass();
+  }
+
+  /**
+   * @return the number of cells evaluated by eager recalculation since this spreadsheet was made.
+   */
+  public long getEvaluationCount() {
+    return recalculator.getEvaluations();
+  }
+
+  /**
+   * @return the number of affected cells that eager recalculation skipped because none of the
+   *     cells they reference changed value.
+   */
+  public long getSkippedEvaluationCount() {
+    return recalculator.getSkippedEvaluations();
   }
 
   /**
@@ -43,25 +216,512 @@ public class Spreadsheet implements BasicSpreadsheet {
    * <p>DO NOT CHANGE THE SIGNATURE. The test suite depends on this.
    */
   public void setCellExpression(CellLocation location, String input) throws InvalidSyntaxException {
-    String original = getCellExpression(location);
-    if (!state.containsKey(location)) {
-      state.put(location, new Cell(this, location));
+    setParsedCellExpression(location, parse(input));
+  }
+
+  /**
+   * Assigns an expression that has already been parsed to a cell.
+   *
+   * @param parsed The expression, or null to clear the cell.
+   */
+  void setParsedCellExpression(CellLocation location, Expression parsed) {
+    long stamp = lockForWrite();
+    try {
+      setParsedExpression(location, share(parsed), false);
+    } finally {
+      unlockWrite(stamp);
+    }
+  }
+
+  /**
+   * Assigns an expression to a cell, leaving its dependents to be recalculated in the background.
+   *
+   * <p>The input is parsed, checked for cycles and assigned before this returns, so later reads of
+   * the cell see the new expression. Its dependents are only marked dirty, and a task on the
+   * recalculation executor brings them up to date, along with those of any other asynchronous
+   * edit made meanwhile. A read of a cell that is still dirty brings it up to date itself, so
+   * reads stay consistent with every edit that has returned; {@link #awaitRecalculation()} waits
+   * for all of the outstanding work at once.
+   *
+   * <p>Background recalculation gives way to any edit waiting for the write lock, so a newer edit
+   * never waits for the recalculation of an older one. The cells the pass had not reached stay
+   * dirty, those the newer edit affects are marked dirty again, and the next pass evaluates each
+   * of them once, with the newer inputs, instead of finishing the older work first.
+   *
+   * @return a future that completes with true once the dependents have been recalculated, or that
+   *     has already completed with false if the edit was rejected because it would create a cycle.
+   * @throws InvalidSyntaxException if the input has invalid syntax.
+   */
+  public CompletableFuture<Boolean> setCellExpressionAsync(CellLocation location, String input)
+      throws InvalidSyntaxException {
+    Expression parsed = parse(input);
+    CompletableFuture<Boolean> done;
+    long stamp = lockForWrite();
+    try {
+      if (!setParsedExpression(location, share(parsed), true)) {
+        return CompletableFuture.completedFuture(false);
+      }
+      if (getCell(location) == null) {
+        return CompletableFuture.completedFuture(true);
+      }
+      unsettled.add(location);
+      if (settled == null) {
+        settled = new CompletableFuture<>();
+        recalculationExecutor.execute(() -> settle(true));
+      }
+      done = settled;
+    } finally {
+      unlockWrite(stamp);
+    }
+    // Callers get a future of their own, so none of them can complete the shared one.
+    return done.thenApply(result -> result);
+  }
+
+  /**
+   * Waits until the dependents of every asynchronous edit made so far have been recalculated,
+   * recalculating them on the calling thread if no task has started on them yet.
+   */
+  public void awaitRecalculation() {
+    settle(false);
+  }
+
+  /**
+   * Recalculates the dependents of the asynchronous edits made so far.
+   *
+   * @param yielding Whether to stop early for waiting edits or at the end of the time budget,
+   *     handing what is left to a new task.
+   */
+  private void settle(boolean yielding) {
+    CompletableFuture<Boolean> done;
+    RuntimeException failure = null;
+    long stamp = lockForWrite();
+    try {
+      done = settled;
+      if (done == null) {
+        return;
+      }
+      settled = null;
+      if (!unsettled.isEmpty()) {
+        // The new edits may have marked cells dirty again that the walk has already passed.
+        reached.clear();
+        for (Cell c : settling) {
+          reached.add(c);
+        }
+        for (CellLocation location : unsettled) {
+          // Later edits may have emptied and dropped some of the cells.
+          Cell c = getCell(location);
+          if (c != null && reached.add(c)) {
+            settling.push(c);
+          }
+        }
+        unsettled.clear();
+      }
+      long started = System.nanoTime();
+      long budget = recalculationBudget;
+      try {
+        if (recalculator.settle(settling, reached, () -> yielding
+            && (waitingWriters.get() > 0 || budget > 0 && System.nanoTime() - started >= budget))) {
+          reached.clear();
+        } else {
+          settled = done;
+          done = null;
+        }
+      } catch (RuntimeException e) {
+        settling.clear();
+        reached.clear();
+        failure = e;
+      }
+    } finally {
+      unlockWrite(stamp);
+    }
+    if (done == null) {
+      // Resubmitted once the lock is free, so that whoever is waiting for it goes first.
+      recalculationExecutor.execute(() -> settle(true));
+    } else if (failure == null) {
+      done.complete(true);
+    } else {
+      done.completeExceptionally(failure);
+    }
+  }
+
+  /**
+   * Applies an edit to the cell at a location.
+   *
+   * @param deferred Whether to only mark the dependents dirty, rather than recalculate them.
+   * @return false if the edit was rejected because it would create a cycle.
+   */
+  private boolean setParsedExpression(CellLocation location, Expression parsed,
+      boolean deferred) {
+    if (columns != null && store(location, parsed)) {
+      return true;
+    }
+    if (parsed == null && !state.containsKey(location) && !isStored(location)) {
+      return true;
+    }
+    Cell c = cellAt(location, false);
+    // The order is checked before the graph is touched, so a rejected edit costs one bounded
+    // search and leaves the cell, its edges and its value exactly as they were.
+    boolean accepted = update(c, parsed);
+    if (accepted) {
+      assign(c, parsed);
+      if (deferred) {
+        recalculator.markDirty(location);
+      } else {
+        recalculate(location);
+      }
+    }
+    reclaim(c);
+    return accepted;
+  }
+
+  /**
+   * Assign expressions to several cells at once.
+   *
+   * <p>Every input is parsed before anything changes. The edits are then applied to the dependency
+   * graph together and recalculated in one pass. If any input has invalid syntax, or the edits
+   * would close a cycle, the spreadsheet is left exactly as it was.
+   *
+   * @param inputs The new expression of each cell to modify.
+   * @return false if the edits were rejected because they would create a cycle.
+   * @throws InvalidSyntaxException if any of the inputs has invalid syntax.
+   */
+  public boolean setCellExpressions(Map<CellLocation, String> inputs)
+      throws InvalidSyntaxException {
+    Map<CellLocation, Expression> parsed = new HashMap<>();
+    for (Map.Entry<CellLocation, String> input : inputs.entrySet()) {
+      parsed.put(input.getKey(), parse(input.getValue()));
+    }
+    return setParsedCellExpressions(parsed);
+  }
+
+  /**
+   * Assigns already parsed expressions to several cells at once, as
+   * {@link #setCellExpressions(Map)} does.
+   *
+   * @param parsed The new expression of each cell to modify, or null for the cells to clear.
+   * @return false if the edits were rejected because they would create a cycle.
+   */
+  boolean setParsedCellExpressions(Map<CellLocation, Expression> parsed) {
+    long stamp = lockForWrite();
+    try {
+      parsed.replaceAll((location, expression) -> share(expression));
+      return setParsedExpressions(parsed.entrySet(), parsed.keySet());
+    } finally {
+      unlockWrite(stamp);
+    }
+  }
+
+  /**
+   * Applies a sequence of edits, in which a location may appear more than once, and recalculates
+   * them in one pass. Each edit is checked against the cells the edits before it leave, so the
+   * sequence is accepted exactly when each edit would have been accepted on its own.
+   *
+   * @param edits Each location to modify with its new expression, or null to clear it, in order.
+   * @return false if one of the edits would create a cycle, in which case none of them is applied.
+   */
+  boolean setParsedCellExpressions(List<Map.Entry<CellLocation, Expression>> edits) {
+    long stamp = lockForWrite();
+    try {
+      List<Map.Entry<CellLocation, Expression>> shared = new ArrayList<>(edits.size());
+      Set<CellLocation> locations = new HashSet<>();
+      for (Map.Entry<CellLocation, Expression> edit : edits) {
+        shared.add(new AbstractMap.SimpleImmutableEntry<>(edit.getKey(), share(edit.getValue())));
+        locations.add(edit.getKey());
+      }
+      return setParsedExpressions(shared, locations);
+    } finally {
+      unlockWrite(stamp);
+    }
+  }
+
+  private boolean setParsedExpressions(Collection<Map.Entry<CellLocation, Expression>> edits,
+      Set<CellLocation> locations) {
+    // No cell is reclaimed until the whole batch has been applied and recalculated: an edit can
+    // empty a cell that a later edit stops reading, while the cell is still one of the locations to
+    // recalculate, and a location edited twice is undone twice.
+    reclaimLater = Collections.newSetFromMap(new IdentityHashMap<>());
+    try {
+      return applyEdits(edits, locations);
+    } finally {
+      Set<Cell> cells = reclaimLater;
+      reclaimLater = null;
+      cells.forEach(this::reclaim);
+    }
+  }
+
+  private boolean applyEdits(Collection<Map.Entry<CellLocation, Expression>> edits,
+      Set<CellLocation> locations) {
+    // Apply the edits one at a time so the order stays valid after each of them. On a cycle they
+    // are undone in reverse, which walks the graph back through the same valid states.
+    List<Cell> applied = new ArrayList<>();
+    List<Expression> originals = new ArrayList<>();
+    for (Map.Entry<CellLocation, Expression> edit : edits) {
+      Cell c = cellAt(edit.getKey(), false);
+      if (!update(c, edit.getValue())) {
+        for (int i = applied.size() - 1; i >= 0; i--) {
+          update(applied.get(i), originals.get(i));
+          assign(applied.get(i), originals.get(i));
+        }
+        applied.forEach(this::reclaim);
+        reclaim(c);
+        return false;
+      }
+      applied.add(c);
+      originals.add(c.getParsedExpression());
+      assign(c, edit.getValue());
+    }
+    if (mode == EvaluationMode.LAZY) {
+      recalculator.markDirty(locations);
+    } else {
+      recalculator.recalculateFrom(locations);
+    }
+    applied.forEach(this::reclaim);
+    return true;
+  }
+
+  /**
+   * @return the number of cells and stored constants in the spreadsheet, empty cells included.
+   */
+  long getCellCount() {
+    return state.size() + (columns == null ? 0 : columns.size());
+  }
+
+  /**
+   * @return the expression of every cell that holds one, including the stored constants.
+   */
+  Map<CellLocation, Expression> getParsedExpressions() {
+    Map<CellLocation, Expression> expressions = new HashMap<>();
+    long stamp = lockForRead();
+    try {
+      for (Cell c : state.values()) {
+        if (!c.getEmptyState()) {
+          expressions.put(c.getLocation(), c.getParsedExpression());
+        }
+      }
+      if (columns != null) {
+        columns.forEach((row, column, value) ->
+            expressions.put(new CellLocation(row, column), new Numbers(value)));
+      }
+    } finally {
+      unlockRead(stamp);
+    }
+    return expressions;
+  }
+
+  /**
+   * Parses a cell's input into the form it is stored in, apart from sharing, which needs the
+   * write lock.
+   *
+   * @return the parsed expression, or null for the empty input.
+   */
+  Expression parse(String input) throws InvalidSyntaxException {
+    if (input.isEmpty()) {
+      return null;
+    }
+    Expression parsed = Parser.parse(input);
+    if (compactFormulas) {
+      try {
+        // Kept as text, so that the cell reads back exactly as it would from the tree.
+        return PostfixProgram.compile(parsed, parsed.toString());
+      } catch (IllegalArgumentException e) {
+        // Malformed operator nodes keep their tree form.
+      }
+    }
+    return parsed;
+  }
+
+  /**
+   * @return the shared copy of a parsed expression, if expressions are shared.
+   */
+  private Expression share(Expression parsed) {
+    if (interner == null || parsed == null || parsed instanceof PostfixProgram) {
+      return parsed;
+    }
+    return interner.intern(parsed);
+  }
+
+  /**
+   * Takes the write lock, unless the calling thread already holds it.
+   *
+   * @return the stamp to pass to {@link #unlockWrite}.
+   */
+  private long lockForWrite() {
+    if (writer == Thread.currentThread()) {
+      return 0L;
+    }
+    waitingWriters.incrementAndGet();
+    long stamp;
+    try {
+      stamp = lock.writeLock();
+    } finally {
+      waitingWriters.decrementAndGet();
+    }
+    writer = Thread.currentThread();
+    versions.expunge();
+    return stamp;
+  }
+
+  private void unlockWrite(long stamp) {
+    if (stamp != 0L) {
+      writer = null;
+      version++;
+      lock.unlockWrite(stamp);
+    }
+  }
+
+  /**
+   * Takes the read lock, unless the calling thread takes part in the edit holding the write lock.
+   *
+   * @return the stamp to pass to {@link #unlockRead}.
+   */
+  private long lockForRead() {
+    return lock.isWriteLocked() && inWrite() ? 0L : lock.readLock();
+  }
+
+  private void unlockRead(long stamp) {
+    if (stamp != 0L) {
+      lock.unlockRead(stamp);
+    }
+  }
+
+  /**
+   * @return whether the calling thread takes part in the edit holding the write lock, either as
+   *     the editing thread or as one evaluating cells on its behalf.
+   */
+  private boolean inWrite() {
+    return writer == Thread.currentThread() || recalculator.isEvaluatingOnPool();
+  }
+
+  /**
+   * Puts a constant, or nothing, into the column store when no cell needs to be notified of it.
+   *
+   * @return whether the edit was handled by the column store.
+   */
+  private boolean store(CellLocation location, Expression parsed) {
+    if (parsed != null && !(parsed instanceof Numbers)) {
+      return false;
+    }
+    int row = location.getRow();
+    int column = location.getColumn();
+    if (!ColumnStore.fits(row, column) || referencedOnly.containsKey(location)
+        || ranges.covers(row, column)) {
+      return false;
     }
     Cell c = state.get(location);
-    c.setExpression(input);
-    if (cycleDetector.hasCycleFrom(location)) {
-      c.setExpression(original);
+    if (c != null) {
+      if (graph.dependentCount(c.getId()) > 0) {
+        return false;
+      }
+      // Nothing reads the cell, so it can be dropped once it stops referencing other cells.
+      assign(c, null);
+      reclaim(c);
+    }
+    recordStored(location);
+    if (parsed == null) {
+      columns.remove(row, column);
+    } else {
+      columns.put(row, column, ((Numbers) parsed).getValue());
+    }
+    return true;
+  }
+
+  /**
+   * @return whether the location, which holds no cell, holds a constant kept in the column store.
+   */
+  private boolean isStored(CellLocation location) {
+    return columns != null && columns.contains(location.getRow(), location.getColumn());
+  }
+
+  /**
+   * Drops a cell that is empty and that no other cell references, as if it was never set. Inside a
+   * batch, the cell is only dropped once the batch is done.
+   */
+  private void reclaim(Cell c) {
+    if (reclaimLater != null) {
+      reclaimLater.add(c);
+      return;
+    }
+    // A cell that has been dropped already has no node to look at.
+    if (c.getId() >= 0 && state.get(c.getLocation()) == c && c.getEmptyState()
+        && graph.dependentCount(c.getId()) == 0) {
+      state.remove(c.getLocation());
+      graph.remove(c.getId());
+      c.setId(-1);
+    }
+  }
+
+  /** Makes room in the topological order for a cell to take on an expression. */
+  private boolean update(Cell c, Expression parsed) {
+    Set<CellLocation> references = parsed == null ? Set.of() : parsed.getCellReferences();
+    return order.update(c, references, Aggregate.rangesOf(parsed));
+  }
+
+  /**
+   * Sets a cell's expression, moving the ranges it reads in the range index along with it and
+   * keeping a summary of each range that is read at all.
+   */
+  private void assign(Cell c, Expression parsed) {
+    for (Aggregate aggregate : Aggregate.aggregatesOf(c.getParsedExpression())) {
+      ranges.remove(aggregate.getRange(), c.getId());
+      summaries.release(aggregate.getRange(), aggregate.getFunction().isOrdered());
+    }
+    c.setExpression(parsed);
+    for (Aggregate aggregate : Aggregate.aggregatesOf(parsed)) {
+      ranges.add(aggregate.getRange(), c.getId());
+      summaries.acquire(aggregate.getRange(), aggregate.getFunction().isOrdered());
     }
-    ;
-    c.recalculate();
   }
 
   @Override
   public double getCellValue(CellLocation location) {
-    if (!state.containsKey(location)) {
-      state.put(location, new Cell(this, location));
+    long stamp = lock.tryOptimisticRead();
+    if (stamp == 0L && inWrite()) {
+      return valueAt(location);
+    }
+    if (stamp != 0L) {
+      try {
+        Cell c = state.get(location);
+        if (c == null || !c.isDirty()) {
+          double value = c == null ? storedValue(location) : c.getValue();
+          if (lock.validate(stamp)) {
+            return value;
+          }
+        }
+      } catch (RuntimeException e) {
+        // An edit changed the column store under the read; fall through and read under the lock.
+      }
+    }
+    stamp = lock.readLock();
+    try {
+      Cell c = state.get(location);
+      if (c == null || !c.isDirty()) {
+        return valueAt(location);
+      }
+    } finally {
+      lock.unlockRead(stamp);
+    }
+    // Bringing a dirty cell up to date changes it, and its precedents, like an edit does.
+    stamp = lockForWrite();
+    try {
+      return valueAt(location);
+    } finally {
+      unlockWrite(stamp);
     }
-    return state.get(location).getValue();
+  }
+
+  private double valueAt(CellLocation location) {
+    Cell c = state.get(location);
+    if (c == null) {
+      return storedValue(location);
+    }
+    if (c.isDirty()) {
+      recalculator.refresh(c);
+    }
+    return c.getValue();
+  }
+
+  private double storedValue(CellLocation location) {
+    return isStored(location) ? columns.get(location.getRow(), location.getColumn()) : 0.0;
   }
   //
   // end replacing
@@ -69,48 +729,408 @@ public class Spreadsheet implements BasicSpreadsheet {
 
   @Override
   public String getCellExpression(CellLocation location) {
-    if (!state.containsKey(location)) {
-      state.put(location, new Cell(this, location));
+    long stamp = lockForRead();
+    try {
+      Cell c = state.get(location);
+      if (c == null) {
+        return isStored(location)
+            ? new Numbers(columns.get(location.getRow(), location.getColumn())).toString() : "";
+      }
+      return c.getExpression();
+    } finally {
+      unlockRead(stamp);
     }
-    return state.get(location).getExpression();
   }
 
   @Override
   public String getCellDisplay(CellLocation location) {
-    if (!state.containsKey(location)) {
-      state.put(location, new Cell(this, location));
+    long stamp = lock.tryOptimisticRead();
+    if (stamp != 0L) {
+      try {
+        Cell c = state.get(location);
+        boolean stored = c == null && isStored(location);
+        boolean empty = c == null ? !stored : c.getEmptyState();
+        if (c == null || empty || !c.isDirty()) {
+          double value = stored ? storedValue(location) : empty ? 0.0 : c.getValue();
+          if (lock.validate(stamp)) {
+            return empty ? "" : Double.toString(value);
+          }
+        }
+      } catch (RuntimeException e) {
+        // An edit changed the column store under the read; fall through and read under the lock.
+      }
     }
-    if (state.get(location).getEmptyState()) {
-      return "";
-    } else {
-      return Double.toString(getCellValue(location));
+    Cell c;
+    stamp = lockForRead();
+    try {
+      c = state.get(location);
+      if (c == null) {
+        return isStored(location) ? Double.toString(storedValue(location)) : "";
+      }
+      if (c.getEmptyState()) {
+        return "";
+      }
+    } finally {
+      unlockRead(stamp);
     }
+    // The cell was not empty; an edit may have cleared it since, in which case its value is 0.
+    return Double.toString(getCellValue(location));
   }
 
   @Override
   public void addDependency(CellLocation dependent, CellLocation dependency) {
-    if (!state.containsKey(dependency)) {
-      state.put(dependency, new Cell(this, dependency));
+    long stamp = lockForWrite();
+    try {
+      addEdge(dependent, dependency);
+    } finally {
+      unlockWrite(stamp);
     }
-    state.get(dependency).addDependent(dependent);
+  }
+
+  private void addEdge(CellLocation dependent, CellLocation dependency) {
+    int precedent;
+    if (state.containsKey(dependency) || isStored(dependency)) {
+      precedent = cellAt(dependency, true).getId();
+    } else {
+      precedent = referencedOnly.computeIfAbsent(dependency, graph::add);
+    }
+    graph.addEdge(cellAt(dependent, false).getId(), precedent);
   }
 
   @Override
   public void removeDependency(CellLocation dependent, CellLocation dependency) {
-    if (!state.containsKey(dependency)) {
-      state.put(dependency, new Cell(this, dependency));
+    long stamp = lockForWrite();
+    try {
+      removeEdge(dependent, dependency);
+    } finally {
+      unlockWrite(stamp);
+    }
+  }
+
+  private void removeEdge(CellLocation dependent, CellLocation dependency) {
+    Cell from = state.get(dependent);
+    if (from == null) {
+      return;
+    }
+    Cell c = state.get(dependency);
+    if (c != null) {
+      graph.removeEdge(from.getId(), c.getId());
+      reclaim(c);
+      return;
+    }
+    Integer precedent = referencedOnly.get(dependency);
+    if (precedent != null) {
+      graph.removeEdge(from.getId(), precedent);
+      if (graph.dependentCount(precedent) == 0) {
+        referencedOnly.remove(dependency);
+        graph.remove(precedent);
+      }
     }
-    state.get(dependency).removeDependent(dependent);
   }
 
   @Override
   public void recalculate(CellLocation location) {
-    state.get(location).recalculate();
+    long stamp = lockForWrite();
+    try {
+      if (mode == EvaluationMode.LAZY) {
+        recalculator.markDirty(location);
+      } else {
+        recalculator.recalculateFrom(location);
+      }
+    } finally {
+      unlockWrite(stamp);
+    }
+  }
+
+  /**
+   * @return the cell stored at the given location, or null if there is none.
+   */
+  Cell getCell(CellLocation location) {
+    return state.get(location);
+  }
+
+  /**
+   * @return the graph of the references between this spreadsheet's cells.
+   */
+  DependencyGraph getGraph() {
+    return graph;
+  }
+
+  /**
+   * @return the graph nodes of the cells whose expressions read a range covering the given cell,
+   *     once per such range.
+   */
+  int[] rangeDependents(Cell c) {
+    return ranges.covering(c.getLocation().getRow(), c.getLocation().getColumn());
+  }
+
+  /**
+   * @return the cells that exist inside a range, whether empty or not.
+   */
+  List<Cell> cellsIn(Range range) {
+    List<Cell> cells = new ArrayList<>();
+    if (range.getArea() <= state.size()) {
+      for (int row = range.getTop(); row <= range.getBottom(); row++) {
+        for (int column = range.getLeft(); column <= range.getRight(); column++) {
+          Cell c = state.get(new CellLocation(row, column));
+          if (c != null) {
+            cells.add(c);
+          }
+        }
+      }
+    } else {
+      for (Cell c : state.values()) {
+        if (range.contains(c.getLocation())) {
+          cells.add(c);
+        }
+      }
+    }
+    return cells;
+  }
+
+  /**
+   * Tallies the values of the non-empty cells inside a range, from the range's summary if some
+   * formula reads the range and by visiting its cells otherwise.
+   */
+  void tally(Range range, Aggregate.Tally tally) {
+    RangeSummaries.Summary summary = summaries.get(range);
+    if (summary != null) {
+      summary.read(this, tally);
+    } else {
+      forEachValue(range, tally::add);
+    }
+  }
+
+  /** Passes the value of each non-empty cell inside a range to an action. */
+  void forEachValue(Range range, DoubleConsumer action) {
+    if (columns == null) {
+      for (Cell c : cellsIn(range)) {
+        if (!c.getEmptyState()) {
+          action.accept(getCellValue(c.getLocation()));
+        }
+      }
+      return;
+    }
+    // Stored constants have no cell, so every location has to be looked at.
+    for (int column = range.getLeft(); column <= range.getRight(); column++) {
+      for (int row = range.getTop(); row <= range.getBottom(); row++) {
+        Cell c = state.get(new CellLocation(row, column));
+        if (c != null) {
+          if (!c.getEmptyState()) {
+            action.accept(getCellValue(c.getLocation()));
+          }
+        } else if (columns.contains(row, column)) {
+          action.accept(columns.get(row, column));
+        }
+      }
+    }
+  }
+
+  /**
+   * Tells the summaries of the ranges covering a cell that its contents changed.
+   *
+   * @param wasPresent Whether the cell was non-empty before.
+   * @param previous The value it had before.
+   * @param present Whether it is non-empty now.
+   * @param value The value it has now.
+   */
+  void valueChanged(Cell c, boolean wasPresent, double previous, boolean present, double value) {
+    CellLocation location = c.getLocation();
+    summaries.changed(location.getRow(), location.getColumn(), wasPresent, previous, present,
+        value);
+  }
+
+  /** Keeps what a cell holds for the snapshots that may see it, before an edit changes it. */
+  void willChange(Cell c) {
+    if (versions.isRecording()) {
+      versions.record(c.getLocation(), c.getParsedExpression(), c.getValue(), version + 1);
+      // Snapshot readers look at the cell before the log, so the record has to land first.
+      VarHandle.storeStoreFence();
+    }
+  }
+
+  /** Keeps the constant, if any, stored at a location before an edit changes it. */
+  private void recordStored(CellLocation location) {
+    if (versions.isRecording() && state.get(location) == null) {
+      double value = storedValue(location);
+      versions.record(location, isStored(location) ? new Numbers(value) : null, value,
+          version + 1);
+      VarHandle.storeStoreFence();
+    }
+  }
+
+  /**
+   * Takes a read-only view of the spreadsheet as it is now, which later edits leave untouched.
+   *
+   * <p>Taking a snapshot copies nothing, except that a lazily evaluated spreadsheet first brings
+   * its dirty cells up to date, so that the snapshot has a value for every cell. Edits made while
+   * snapshots are alive keep the contents they replace until the snapshots that can see them have
+   * been garbage collected.
+   *
+   * @return the snapshot.
+   */
+  public BasicSpreadsheet snapshot() {
+    if (mode == EvaluationMode.EAGER) {
+      long stamp = lockForRead();
+      try {
+        // Asynchronous edits leave eagerly evaluated cells dirty until they are recalculated.
+        if (settled == null) {
+          return register(new Snapshot(this, version));
+        }
+      } finally {
+        unlockRead(stamp);
+      }
+    }
+    long stamp = lockForWrite();
+    try {
+      for (Cell c : state.values()) {
+        if (c.isDirty()) {
+          recalculator.refresh(c);
+        }
+      }
+      // Refreshing counts as an edit, and the snapshot shows its result.
+      return register(new Snapshot(this, version + 1));
+    } finally {
+      unlockWrite(stamp);
+    }
+  }
+
+  private Snapshot register(Snapshot snapshot) {
+    versions.register(snapshot);
+    return snapshot;
+  }
+
+  /**
+   * @return the contents of a location as of the given committed version.
+   */
+  VersionLog.Version contentsAt(CellLocation location, long version) {
+    while (true) {
+      VersionLog.Version current;
+      try {
+        current = currentContents(location);
+      } catch (RuntimeException e) {
+        // An edit is changing the location, or the column store around it.
+        current = null;
+      }
+      VarHandle.loadLoadFence();
+      VersionLog.Version before = versions.before(location, version);
+      if (before != null) {
+        return before;
+      }
+      if (current != null) {
+        return current;
+      }
+      Thread.onSpinWait();
+    }
+  }
+
+  private VersionLog.Version currentContents(CellLocation location) {
+    Cell c = state.get(location);
+    if (c != null) {
+      Expression expression = c.getParsedExpression();
+      return expression == null
+          ? VersionLog.Version.EMPTY : new VersionLog.Version(0L, expression, c.getValue(), null);
+    }
+    if (isStored(location)) {
+      double value = storedValue(location);
+      return new VersionLog.Version(0L, new Numbers(value), value, null);
+    }
+    return VersionLog.Version.EMPTY;
+  }
+
+  /**
+   * @return the number of locations whose replaced contents are kept for live snapshots.
+   */
+  int getRecordedLocationCount() {
+    return versions.size();
+  }
+
+  /** Tells the summaries of the ranges covering a cell that it was marked dirty. */
+  void valueStale(Cell c) {
+    summaries.stale(c);
+  }
+
+  /** Brings a dirty cell up to date. */
+  void refresh(Cell c) {
+    recalculator.refresh(c);
+  }
+
+  /**
+   * Gets the cell at the given location, creating an empty one if there is none yet.
+   *
+   * @param location The location of the cell.
+   * @param referenced Whether the cell is wanted for reading or as a reference, rather than to
+   *     receive an expression; this decides where a new cell goes in the topological order.
+   */
+  Cell cellAt(CellLocation location, boolean referenced) {
+    Cell c = state.get(location);
+    if (c == null) {
+      c = new Cell(this, location);
+      Integer id = referencedOnly.remove(location);
+      if (id != null || ranges.covers(location.getRow(), location.getColumn())) {
+        // The cell is referenced but references nothing yet, so it can go before everything.
+        referenced = true;
+      }
+      if (id == null) {
+        id = graph.add(location);
+      }
+      c.setId(id);
+      graph.setCell(id, c);
+      if (columns != null && columns.contains(location.getRow(), location.getColumn())) {
+        // A stored constant becomes a full cell once it is referenced or given a formula. The
+        // constant leaves its ranges' summaries here and comes back through the cell.
+        double stored = columns.get(location.getRow(), location.getColumn());
+        recordStored(location);
+        columns.remove(location.getRow(), location.getColumn());
+        summaries.changed(location.getRow(), location.getColumn(), true, stored, false, 0.0);
+        c.setExpression(new Numbers(stored));
+        c.evaluate();
+        referenced = true;
+      }
+      order.place(c, referenced);
+      state.put(location, c);
+    }
+    return c;
   }
 
   @Override
   public void findCellReferences(CellLocation subject, Set<CellLocation> target) {
-    state.get(subject).findCellReferences(target);
+    long stamp = lockForRead();
+    try {
+      Cell c = state.get(subject);
+      if (c == null) {
+        return;
+      }
+      for (int slot = 0, slots = graph.precedentSlots(c.getId()); slot < slots; slot++) {
+        int precedent = graph.precedent(c.getId(), slot);
+        if (precedent >= 0) {
+          target.add(graph.getLocation(precedent));
+        }
+      }
+    } finally {
+      unlockRead(stamp);
+    }
+  }
+
+  /** How a spreadsheet keeps its cells. */
+  public enum Storage {
+    /** Every cell that has been set or referenced is an object in a map. */
+    CELLS,
+    /**
+     * Constant cells that no formula references are kept as primitive values in column chunks,
+     * taking a little over eight bytes each; only formulas and referenced cells are objects.
+     */
+    COLUMNS
   }
 
+  /** How a spreadsheet propagates edits to the cells that depend on them. */
+  public enum EvaluationMode {
+    /** Every edit immediately recalculates all of its dependents. */
+    EAGER,
+    /**
+     * Edits only mark their dependents dirty; dirty cells are evaluated, and the result kept, the
+     * next time their value is read.
+     */
+    LAZY
+  }
 }
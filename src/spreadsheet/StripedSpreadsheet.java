@@ -0,0 +1,271 @@
+package spreadsheet;
+
+import common.api.BasicSpreadsheet;
+import common.api.CellLocation;
+import common.api.Expression;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * A spreadsheet split into regions that can be edited concurrently.
+ *
+ * <p>The grid is cut into blocks of a fixed number of rows and columns, and every block that has
+ * been written to belongs to a region. Each region is a {@link Spreadsheet} of its own, with its
+ * own lock, dependency graph and recalculation, so edits in different regions run in parallel as
+ * long as their formulas only read cells of their own region.
+ *
+ * <p>An edit whose formula reads a block of another region escalates: it takes the lock over all
+ * regions, moves the cells of the other regions into the largest of them, and is then applied
+ * there. Regions are therefore the weakly connected components of the dependency graph, coarsened
+ * to whole blocks. Removing references never splits a region again. Edges added with
+ * {@link #addDependency} alone, without a reference in a formula, are not carried into the region
+ * a merge moves their cells to.
+ */
+public class StripedSpreadsheet implements BasicSpreadsheet {
+
+  // The block of every location that is not a plain column and row.
+  private static final long OTHER = -1L;
+
+  private final Spreadsheet.EvaluationMode mode;
+  private final Spreadsheet.Storage storage;
+  private final int blockRows;
+  private final int blockColumns;
+  // Held for reading by edits within one region, and for writing while regions are merged.
+  private final StampedLock lock = new StampedLock();
+  private final Map<Long, Spreadsheet> regions = new ConcurrentHashMap<>();
+
+  /**
+   * Construct an empty spreadsheet whose regions are made of blocks of the given size.
+   *
+   * @param mode How each region propagates edits.
+   * @param storage How each region stores its cells.
+   * @param blockRows The number of rows in a block.
+   * @param blockColumns The number of columns in a block.
+   */
+  public StripedSpreadsheet(Spreadsheet.EvaluationMode mode, Spreadsheet.Storage storage,
+      int blockRows, int blockColumns) {
+    if (blockRows <= 0 || blockColumns <= 0) {
+      throw new IllegalArgumentException("blocks must have at least one row and column");
+    }
+    this.mode = mode;
+    this.storage = storage;
+    this.blockRows = blockRows;
+    this.blockColumns = blockColumns;
+  }
+
+  @Override
+  public void setCellExpression(CellLocation location, String input)
+      throws InvalidSyntaxException {
+    Expression parsed = input.isEmpty() ? null : Parser.parse(input);
+    if (parsed == null) {
+      withRegion(location, sheet -> sheet.setParsedCellExpression(location, null));
+      return;
+    }
+    Set<Long> blocks = new HashSet<>();
+    blocks.add(blockOf(location));
+    for (CellLocation reference : parsed.getCellReferences()) {
+      blocks.add(blockOf(reference));
+    }
+    for (Range range : Aggregate.rangesOf(parsed)) {
+      for (int row = range.getTop() / blockRows; row <= range.getBottom() / blockRows; row++) {
+        for (int column = range.getLeft() / blockColumns;
+            column <= range.getRight() / blockColumns; column++) {
+          blocks.add((long) row << 32 | column);
+        }
+      }
+    }
+    edit(blocks, sheet -> sheet.setParsedCellExpression(location, parsed));
+  }
+
+  @Override
+  public void addDependency(CellLocation dependent, CellLocation dependency) {
+    edit(Set.of(blockOf(dependent), blockOf(dependency)),
+        sheet -> sheet.addDependency(dependent, dependency));
+  }
+
+  @Override
+  public void removeDependency(CellLocation dependent, CellLocation dependency) {
+    withRegion(dependent, sheet -> sheet.removeDependency(dependent, dependency));
+  }
+
+  @Override
+  public void recalculate(CellLocation location) {
+    withRegion(location, sheet -> sheet.recalculate(location));
+  }
+
+  @Override
+  public double getCellValue(CellLocation location) {
+    long stamp = lock.tryOptimisticRead();
+    if (stamp != 0L) {
+      Spreadsheet sheet = regions.get(blockOf(location));
+      double value = sheet == null ? 0.0 : sheet.getCellValue(location);
+      if (lock.validate(stamp)) {
+        return value;
+      }
+    }
+    stamp = lock.readLock();
+    try {
+      Spreadsheet sheet = regions.get(blockOf(location));
+      return sheet == null ? 0.0 : sheet.getCellValue(location);
+    } finally {
+      lock.unlockRead(stamp);
+    }
+  }
+
+  @Override
+  public String getCellDisplay(CellLocation location) {
+    return read(location, sheet -> sheet.getCellDisplay(location));
+  }
+
+  @Override
+  public String getCellExpression(CellLocation location) {
+    return read(location, sheet -> sheet.getCellExpression(location));
+  }
+
+  @Override
+  public void findCellReferences(CellLocation subject, Set<CellLocation> target) {
+    withRegion(subject, sheet -> sheet.findCellReferences(subject, target));
+  }
+
+  /**
+   * @return the number of regions the spreadsheet is split into.
+   */
+  int getRegionCount() {
+    Set<Spreadsheet> distinct = Collections.newSetFromMap(new IdentityHashMap<>());
+    distinct.addAll(regions.values());
+    return distinct.size();
+  }
+
+  private long blockOf(CellLocation location) {
+    int row = location.getRow();
+    int column = location.getColumn();
+    if (row < 0 || column < 0) {
+      return OTHER;
+    }
+    return (long) (row / blockRows) << 32 | column / blockColumns;
+  }
+
+  /** Reads from the region of a location, or gives the empty string if it has none. */
+  private String read(CellLocation location, Function<Spreadsheet, String> read) {
+    long stamp = lock.tryOptimisticRead();
+    if (stamp != 0L) {
+      Spreadsheet sheet = regions.get(blockOf(location));
+      String result = sheet == null ? "" : read.apply(sheet);
+      if (lock.validate(stamp)) {
+        return result;
+      }
+    }
+    stamp = lock.readLock();
+    try {
+      Spreadsheet sheet = regions.get(blockOf(location));
+      return sheet == null ? "" : read.apply(sheet);
+    } finally {
+      lock.unlockRead(stamp);
+    }
+  }
+
+  /** Acts on the region of a location, if it has one, without creating or merging regions. */
+  private void withRegion(CellLocation location, Consumer<Spreadsheet> action) {
+    long stamp = lock.readLock();
+    try {
+      Spreadsheet sheet = regions.get(blockOf(location));
+      if (sheet != null) {
+        action.accept(sheet);
+      }
+    } finally {
+      lock.unlockRead(stamp);
+    }
+  }
+
+  /**
+   * Applies an edit to the region holding all of the given blocks, merging regions first if the
+   * blocks belong to more than one.
+   */
+  private void edit(Set<Long> blocks, Consumer<Spreadsheet> edit) {
+    long stamp = lock.readLock();
+    try {
+      Spreadsheet sheet = claim(blocks);
+      if (sheet != null) {
+        edit.accept(sheet);
+        return;
+      }
+    } finally {
+      lock.unlockRead(stamp);
+    }
+    stamp = lock.writeLock();
+    try {
+      edit.accept(merge(blocks));
+    } finally {
+      lock.unlockWrite(stamp);
+    }
+  }
+
+  /**
+   * Finds the one region the given blocks belong to, adding the blocks that belong to none to it.
+   *
+   * @return the region, or null if the blocks belong to several regions.
+   */
+  private Spreadsheet claim(Set<Long> blocks) {
+    Spreadsheet region = null;
+    for (long block : blocks) {
+      Spreadsheet sheet = regions.get(block);
+      if (sheet != null) {
+        if (region != null && region != sheet) {
+          return null;
+        }
+        region = sheet;
+      }
+    }
+    if (region == null) {
+      region = new Spreadsheet(mode, storage);
+    }
+    for (long block : blocks) {
+      // Another edit may claim the same free block for a different region at the same time.
+      Spreadsheet sheet = regions.putIfAbsent(block, region);
+      if (sheet != null && sheet != region) {
+        return null;
+      }
+    }
+    return region;
+  }
+
+  /**
+   * Merges the regions of the given blocks into the largest of them. Only called with the write
+   * lock held, when no region is being edited.
+   *
+   * @return the merged region, which all of the blocks now belong to.
+   */
+  private Spreadsheet merge(Set<Long> blocks) {
+    Set<Spreadsheet> merged = Collections.newSetFromMap(new IdentityHashMap<>());
+    Spreadsheet target = null;
+    for (long block : blocks) {
+      Spreadsheet sheet = regions.get(block);
+      if (sheet != null && merged.add(sheet)
+          && (target == null || sheet.getCellCount() > target.getCellCount())) {
+        target = sheet;
+      }
+    }
+    if (target == null) {
+      target = new Spreadsheet(mode, storage);
+    }
+    for (Spreadsheet sheet : merged) {
+      if (sheet != target) {
+        // The regions share no references, so moving one into another cannot close a cycle.
+        target.setParsedCellExpressions(sheet.getParsedExpressions());
+      }
+    }
+    Spreadsheet region = target;
+    regions.replaceAll((block, sheet) -> merged.contains(sheet) ? region : sheet);
+    for (long block : blocks) {
+      regions.put(block, region);
+    }
+    return region;
+  }
+}
@@ -0,0 +1,209 @@
+package spreadsheet;
+
+import common.api.CellLocation;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Keeps the cells of a spreadsheet in a topological order as edges are added, detecting cycles
+ * incrementally (Pearce and Kelly's dynamic topological sort).
+ *
+ * <p>Every cell carries a rank, and every cell ranks below all of its dependents. When a cell's
+ * expression gains references to higher-ranked cells, only the cells ranked between the edited
+ * cell and its highest new reference are searched: forwards from the edited cell to find what must
+ * move up, and backwards from the references to find what must move down. A cycle exists exactly
+ * when the forward search reaches one of the new references. Removing edges never breaks the order,
+ * and the ranks double as a valid evaluation order.
+ */
+class TopologicalOrder {
+
+  private static final Comparator<Cell> BY_RANK = Comparator.comparingInt(Cell::getRank);
+
+  private final Spreadsheet spreadsheet;
+  private int first;
+  private int last;
+  private int visits;
+
+  TopologicalOrder(Spreadsheet spreadsheet) {
+    this.spreadsheet = spreadsheet;
+  }
+
+  /**
+   * Gives a newly created cell, which has no edges yet, a rank of its own.
+   *
+   * <p>Any rank is valid for such a cell, but placing it well avoids reordering later. A cell
+   * created because something references it goes before everything else, and a cell created to
+   * receive an expression goes after everything else, so that filling a column in either direction
+   * never needs a search.
+   *
+   * @param cell The new cell.
+   * @param referenced Whether the cell was created as the target of a reference.
+   */
+  void place(Cell cell, boolean referenced) {
+    cell.setRank(referenced ? --first : ++last);
+  }
+
+  /**
+   * Makes room in the order for a cell to take on a new set of references.
+   *
+   * <p>This is called before the new references are wired into the graph. Edges into the target
+   * are all that change, so the searches below never depend on whether the old ones are still in
+   * place. If the new references would close a cycle, nothing is changed, and the caller can
+   * simply leave the cell as it was.
+   *
+   * @param target The cell about to take on the new references.
+   * @param references The locations the cell's new expression refers to.
+   * @return false if the references would close a cycle through the target.
+   */
+  boolean update(Cell target, Set<CellLocation> references) {
+    return update(target, references, List.of());
+  }
+
+  /**
+   * Makes room in the order for a cell to take on a new set of references and ranges.
+   *
+   * <p>Every existing cell inside one of the ranges is treated like a reference. Cells created
+   * inside a range later on are placed ahead of everything else, like other referenced cells.
+   *
+   * @param target The cell about to take on the new references.
+   * @param references The locations the cell's new expression refers to.
+   * @param ranges The ranges the cell's new expression reads.
+   * @return false if the references or ranges would close a cycle through the target.
+   */
+  boolean update(Cell target, Set<CellLocation> references, List<Range> ranges) {
+    int lower = target.getRank();
+    int upper = lower;
+    for (CellLocation location : references) {
+      // Cells that do not exist yet will be created ahead of everything else.
+      Cell reference = spreadsheet.getCell(location);
+      if (reference != null) {
+        upper = Math.max(upper, reference.getRank());
+      }
+    }
+    if (references.contains(target.getLocation())) {
+      return false;
+    }
+    List<Cell> covered = new ArrayList<>();
+    for (Range range : ranges) {
+      if (range.contains(target.getLocation())) {
+        return false;
+      }
+      for (Cell cell : spreadsheet.cellsIn(range)) {
+        covered.add(cell);
+        upper = Math.max(upper, cell.getRank());
+      }
+    }
+    if (upper == lower) {
+      return true;
+    }
+
+    // Everything reachable from the target and ranked no higher than its highest reference. The
+    // target can only reach cells ranked above it, so this bound is enough to find any cycle.
+    int visit = ++visits;
+    List<Cell> forward = new ArrayList<>();
+    Deque<Cell> work = new ArrayDeque<>();
+    target.setVisit(visit);
+    work.push(target);
+    DependencyGraph graph = spreadsheet.getGraph();
+    while (!work.isEmpty()) {
+      Cell cell = work.pop();
+      forward.add(cell);
+      for (int slot = 0, slots = graph.dependentSlots(cell.getId()); slot < slots; slot++) {
+        int id = graph.dependent(cell.getId(), slot);
+        if (id >= 0 && !visitForward(graph.getCell(id), references, ranges, upper, visit, work)) {
+          return false;
+        }
+      }
+      for (int id : spreadsheet.rangeDependents(cell)) {
+        if (!visitForward(graph.getCell(id), references, ranges, upper, visit, work)) {
+          return false;
+        }
+      }
+    }
+
+    // Everything that reaches an out-of-order reference and is ranked above the target. The cells
+    // of a range are queued once, however many of the cells searched read it.
+    List<Cell> backward = new ArrayList<>();
+    Set<Range> scanned = new HashSet<>(ranges);
+    for (CellLocation location : references) {
+      visitBackward(spreadsheet.getCell(location), lower, visit, work);
+    }
+    for (Cell cell : covered) {
+      visitBackward(cell, lower, visit, work);
+    }
+    while (!work.isEmpty()) {
+      Cell cell = work.pop();
+      backward.add(cell);
+      for (int slot = 0, slots = graph.precedentSlots(cell.getId()); slot < slots; slot++) {
+        int id = graph.precedent(cell.getId(), slot);
+        // Locations without a cell reference nothing, so no search needs to go past them.
+        visitBackward(id < 0 ? null : graph.getCell(id), lower, visit, work);
+      }
+      for (Range range : Aggregate.rangesOf(cell.getParsedExpression())) {
+        if (scanned.add(range)) {
+          for (Cell precedent : spreadsheet.cellsIn(range)) {
+            visitBackward(precedent, lower, visit, work);
+          }
+        }
+      }
+    }
+
+    // Hand the ranks held by both sets back out, the backward set first.
+    forward.sort(BY_RANK);
+    backward.sort(BY_RANK);
+    int[] ranks = new int[forward.size() + backward.size()];
+    int i = 0;
+    for (Cell cell : backward) {
+      ranks[i++] = cell.getRank();
+    }
+    for (Cell cell : forward) {
+      ranks[i++] = cell.getRank();
+    }
+    Arrays.sort(ranks);
+    i = 0;
+    for (Cell cell : backward) {
+      cell.setRank(ranks[i++]);
+    }
+    for (Cell cell : forward) {
+      cell.setRank(ranks[i++]);
+    }
+    return true;
+  }
+
+  /**
+   * Queues a dependent met by the forward search, if it is ranked low enough to matter.
+   *
+   * @return false if the dependent is one of the new references, which means there is a cycle.
+   */
+  private static boolean visitForward(
+      Cell dependent, Set<CellLocation> references, List<Range> ranges, int upper, int visit,
+      Deque<Cell> work) {
+    if (references.contains(dependent.getLocation())) {
+      return false;
+    }
+    for (Range range : ranges) {
+      if (range.contains(dependent.getLocation())) {
+        return false;
+      }
+    }
+    if (dependent.getRank() < upper && dependent.getVisit() != visit) {
+      dependent.setVisit(visit);
+      work.push(dependent);
+    }
+    return true;
+  }
+
+  /** Queues a precedent met by the backward search, if it is ranked above the target. */
+  private static void visitBackward(Cell precedent, int lower, int visit, Deque<Cell> work) {
+    if (precedent != null && precedent.getRank() > lower && precedent.getVisit() != visit) {
+      precedent.setVisit(visit);
+      work.push(precedent);
+    }
+  }
+}
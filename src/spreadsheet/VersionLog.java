@@ -0,0 +1,158 @@
+package spreadsheet;
+
+import common.api.CellLocation;
+import common.api.Expression;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The old contents of locations that live snapshots may still need to see.
+ *
+ * <p>Every edit of a spreadsheet commits a new version. While any {@link Snapshot} is alive, the
+ * first change an edit makes to a location first records what the location held before, tagged
+ * with the version of the edit. A location's records form a chain, newest first, so the contents
+ * a snapshot of version v sees are those recorded by the oldest edit after v, or the current
+ * contents if no edit after v touched the location. Nothing is copied when a snapshot is taken.
+ *
+ * <p>Snapshots are tracked through phantom references. Once the oldest of them has been collected,
+ * the records no remaining snapshot can see are cut off the chains, and once none is left the log
+ * is emptied.
+ */
+final class VersionLog {
+
+  private final Map<CellLocation, Version> history = new ConcurrentHashMap<>();
+  private final ReferenceQueue<Snapshot> collected = new ReferenceQueue<>();
+  // Strong references to the phantom references, which are otherwise dropped without notice.
+  private final Set<SnapshotReference> references = new HashSet<>();
+  // The versions of the live snapshots, with how many snapshots there are of each.
+  private final TreeMap<Long, Integer> live = new TreeMap<>();
+  private volatile boolean recording;
+
+  /** Starts keeping the contents a new snapshot sees. */
+  synchronized void register(Snapshot snapshot) {
+    references.add(new SnapshotReference(snapshot, collected));
+    live.merge(snapshot.getVersion(), 1, Integer::sum);
+    recording = true;
+  }
+
+  /**
+   * @return whether there are snapshots that may need the old contents of locations.
+   */
+  boolean isRecording() {
+    return recording;
+  }
+
+  /**
+   * Records the contents of a location just before an edit first changes them. Later changes by
+   * the same edit are not recorded, as no snapshot can see them.
+   *
+   * @param location The location about to change.
+   * @param expression The expression it holds, or null if it is empty.
+   * @param value The value it has.
+   * @param edit The version the edit will commit.
+   */
+  void record(CellLocation location, Expression expression, double value, long edit) {
+    history.compute(location, (key, head) -> head != null && head.replacedAt == edit
+        ? head : new Version(edit, expression, value, head));
+  }
+
+  /**
+   * @return the contents of a location that a snapshot of the given version sees, or null if the
+   *     location has not changed since.
+   */
+  Version before(CellLocation location, long version) {
+    Version seen = null;
+    for (Version v = history.get(location); v != null && v.replacedAt > version; v = v.older) {
+      seen = v;
+    }
+    return seen;
+  }
+
+  /**
+   * @return the number of locations with recorded contents.
+   */
+  int size() {
+    return history.size();
+  }
+
+  /**
+   * Forgets the snapshots that have been collected, along with whatever only they could see.
+   *
+   * <p>Only called with the spreadsheet's write lock held, so that no edit records anything
+   * meanwhile.
+   */
+  synchronized void expunge() {
+    Reference<? extends Snapshot> reference = collected.poll();
+    if (reference == null) {
+      return;
+    }
+    Long oldest = live.firstKey();
+    do {
+      SnapshotReference snapshot = (SnapshotReference) reference;
+      references.remove(snapshot);
+      live.computeIfPresent(snapshot.version, (version, count) -> count == 1 ? null : count - 1);
+      reference = collected.poll();
+    } while (reference != null);
+
+    if (live.isEmpty()) {
+      recording = false;
+      history.clear();
+    } else if (live.firstKey() > oldest) {
+      long version = live.firstKey();
+      // Records of edits up to the oldest live snapshot can no longer be seen by anyone.
+      history.values().removeIf(head -> head.replacedAt <= version);
+      for (Version head : history.values()) {
+        for (Version v = head; v.older != null; v = v.older) {
+          if (v.older.replacedAt <= version) {
+            v.older = null;
+            break;
+          }
+        }
+      }
+    }
+  }
+
+  /** What a location held before an edit. */
+  static final class Version {
+    static final Version EMPTY = new Version(0L, null, 0.0, null);
+
+    final long replacedAt;
+    private final Expression expression;
+    private final double value;
+    // Cut off once no snapshot can see the older records.
+    volatile Version older;
+
+    Version(long replacedAt, Expression expression, double value, Version older) {
+      this.replacedAt = replacedAt;
+      this.expression = expression;
+      this.value = value;
+      this.older = older;
+    }
+
+    /**
+     * @return the expression the location held, or null if it was empty.
+     */
+    Expression getExpression() {
+      return expression;
+    }
+
+    double getValue() {
+      return expression == null ? 0.0 : value;
+    }
+  }
+
+  private static final class SnapshotReference extends PhantomReference<Snapshot> {
+    final long version;
+
+    SnapshotReference(Snapshot snapshot, ReferenceQueue<Snapshot> queue) {
+      super(snapshot, queue);
+      this.version = snapshot.getVersion();
+    }
+  }
+}
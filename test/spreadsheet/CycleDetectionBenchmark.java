@@ -0,0 +1,101 @@
+package spreadsheet;
+
+import common.api.CellLocation;
+import common.api.Expression;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Compares the incremental {@link TopologicalOrder} with the full-walk {@link CycleDetector} on
+ * random acyclic sheets of 10^5 to 10^6 edges.
+ *
+ * <p>Each cell references a few random cells with lower indices, so the sheet is acyclic. The
+ * formulas are entered once in index order, the way a sheet is usually filled in, and once in a
+ * random order, so that the incremental order has to be repaired as it goes. Only the cycle checks
+ * are timed. The full walk is stopped after a time budget and its total is extrapolated from the
+ * edits it managed; since later edits walk larger sheets, the extrapolation flatters it.
+ */
+public class CycleDetectionBenchmark {
+
+  private static final int REFERENCES_PER_CELL = 4;
+  private static final long BUDGET_NANOS = 20_000_000_000L;
+
+  public static void main(String[] args) throws InvalidSyntaxException {
+    for (int edges : new int[] {100_000, 300_000, 1_000_000}) {
+      run(edges / REFERENCES_PER_CELL, false);
+      run(edges / REFERENCES_PER_CELL, true);
+    }
+  }
+
+  private static void run(int cells, boolean shuffled) throws InvalidSyntaxException {
+    Random random = new Random(cells);
+    List<Integer> entryOrder = new ArrayList<>();
+    List<Expression> formulas = new ArrayList<>();
+    for (int i = 0; i < cells; i++) {
+      StringBuilder input = new StringBuilder("1");
+      for (int r = 0; r < REFERENCES_PER_CELL && i > 0; r++) {
+        input.append(" + ").append(location(random.nextInt(i)));
+      }
+      formulas.add(Parser.parse(input.toString()));
+      entryOrder.add(i);
+    }
+    if (shuffled) {
+      Collections.shuffle(entryOrder, random);
+    }
+    String scenario = shuffled ? "shuffled" : "in order";
+
+    Spreadsheet incremental = new Spreadsheet();
+    TopologicalOrder order = new TopologicalOrder(incremental);
+    long start;
+    long elapsed = 0;
+    for (int i : entryOrder) {
+      Cell cell = incremental.cellAt(location(i), false);
+      Expression formula = formulas.get(i);
+      start = System.nanoTime();
+      if (!order.update(cell, formula.getCellReferences())) {
+        throw new AssertionError("unexpected cycle");
+      }
+      elapsed += System.nanoTime() - start;
+      cell.setExpression(formula);
+    }
+    report(scenario, "incremental", cells, cells, elapsed);
+
+    Spreadsheet walked = new Spreadsheet();
+    CycleDetector detector = new CycleDetector(walked);
+    elapsed = 0;
+    int done = 0;
+    for (int i : entryOrder) {
+      Cell cell = walked.cellAt(location(i), false);
+      cell.setExpression(formulas.get(i));
+      start = System.nanoTime();
+      if (detector.hasCycleFrom(location(i))) {
+        throw new AssertionError("unexpected cycle");
+      }
+      elapsed += System.nanoTime() - start;
+      done++;
+      if (elapsed > BUDGET_NANOS) {
+        break;
+      }
+    }
+    report(scenario, "full walk", cells, done, elapsed);
+  }
+
+  private static CellLocation location(int i) {
+    return new CellLocation(i / 26, i % 26);
+  }
+
+  private static void report(String scenario, String name, int cells, int done, long nanos) {
+    double perEdit = (double) nanos / done;
+    System.out.printf(
+        "%,9d edges  %-9s %-12s %,8d edits  %10.2f us/edit  %10.2f s total%s%n",
+        cells * REFERENCES_PER_CELL,
+        scenario,
+        name,
+        done,
+        perEdit / 1e3,
+        perEdit * cells / 1e9,
+        done < cells ? " (extrapolated)" : "");
+  }
+}
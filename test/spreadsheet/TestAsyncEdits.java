@@ -0,0 +1,212 @@
+package spreadsheet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import common.api.BasicSpreadsheet;
+import common.api.CellLocation;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+public class TestAsyncEdits {
+
+  private static CellLocation at(String location) {
+    return new CellLocation(location);
+  }
+
+  /** Makes a1 feed a chain b1 = a1 + 1, b2 = b1 + 1, and so on. */
+  private static Spreadsheet chain(List<Runnable> tasks) throws InvalidSyntaxException {
+    Spreadsheet spreadsheet = new Spreadsheet();
+    spreadsheet.setRecalculationExecutor(tasks::add);
+    spreadsheet.setCellExpression(at("a1"), "0");
+    spreadsheet.setCellExpression(at("b1"), "a1 + 1");
+    for (int row = 2; row <= 20; row++) {
+      spreadsheet.setCellExpression(at("b" + row), "b" + (row - 1) + " + 1");
+    }
+    return spreadsheet;
+  }
+
+  @Test
+  public void testCompletesAfterRecalculation() throws Exception {
+    List<Runnable> tasks = new ArrayList<>();
+    Spreadsheet spreadsheet = chain(tasks);
+    CompletableFuture<Boolean> first = spreadsheet.setCellExpressionAsync(at("a1"), "10");
+    CompletableFuture<Boolean> second = spreadsheet.setCellExpressionAsync(at("b10"), "b9 * 2");
+    assertEquals("10.0", spreadsheet.getCellDisplay(at("a1")));
+    assertFalse(first.isDone());
+    // Both edits are recalculated by one task.
+    assertEquals(1, tasks.size());
+
+    tasks.get(0).run();
+    assertTrue(first.get(0, TimeUnit.SECONDS));
+    assertTrue(second.get(0, TimeUnit.SECONDS));
+    assertEquals(19.0, spreadsheet.getCellValue(at("b9")), 0);
+    assertEquals(48.0, spreadsheet.getCellValue(at("b20")), 0);
+  }
+
+  @Test
+  public void testReadsPullDirtyCells() throws Exception {
+    List<Runnable> tasks = new ArrayList<>();
+    Spreadsheet spreadsheet = chain(tasks);
+    CompletableFuture<Boolean> done = spreadsheet.setCellExpressionAsync(at("a1"), "100");
+    assertEquals(120.0, spreadsheet.getCellValue(at("b20")), 0);
+    assertEquals("110.0", spreadsheet.getCellDisplay(at("b10")));
+    BasicSpreadsheet snapshot = spreadsheet.snapshot();
+    assertEquals(105.0, snapshot.getCellValue(at("b5")), 0);
+
+    spreadsheet.setCellExpression(at("a1"), "1");
+    assertEquals(21.0, spreadsheet.getCellValue(at("b20")), 0);
+    tasks.forEach(Runnable::run);
+    assertTrue(done.get(0, TimeUnit.SECONDS));
+    assertEquals(21.0, spreadsheet.getCellValue(at("b20")), 0);
+    assertEquals(105.0, snapshot.getCellValue(at("b5")), 0);
+  }
+
+  @Test
+  public void testCycleRejected() throws Exception {
+    List<Runnable> tasks = new ArrayList<>();
+    Spreadsheet spreadsheet = chain(tasks);
+    String before = spreadsheet.getCellExpression(at("a1"));
+    CompletableFuture<Boolean> done = spreadsheet.setCellExpressionAsync(at("a1"), "b20");
+    assertFalse(done.get(0, TimeUnit.SECONDS));
+    assertEquals(before, spreadsheet.getCellExpression(at("a1")));
+    assertTrue(tasks.isEmpty());
+  }
+
+  @Test
+  public void testAwaitRecalculation() throws Exception {
+    List<Runnable> tasks = new ArrayList<>();
+    Spreadsheet spreadsheet = chain(tasks);
+    CompletableFuture<Boolean> done = spreadsheet.setCellExpressionAsync(at("a1"), "5");
+    spreadsheet.awaitRecalculation();
+    assertTrue(done.get(0, TimeUnit.SECONDS));
+    long evaluations = spreadsheet.getEvaluationCount();
+    assertEquals(25.0, spreadsheet.getCellValue(at("b20")), 0);
+    // The queued task finds nothing left to do.
+    tasks.forEach(Runnable::run);
+    assertEquals(evaluations, spreadsheet.getEvaluationCount());
+  }
+
+  @Test(timeout = 60000)
+  public void testBackgroundExecutor() throws Exception {
+    Spreadsheet spreadsheet = chain(new ArrayList<>());
+    spreadsheet.setRecalculationExecutor(runnable -> new Thread(runnable).start());
+    List<CompletableFuture<Boolean>> futures = new ArrayList<>();
+    for (int value = 1; value <= 50; value++) {
+      futures.add(spreadsheet.setCellExpressionAsync(at("a1"), Integer.toString(value)));
+    }
+    spreadsheet.awaitRecalculation();
+    assertEquals(70.0, spreadsheet.getCellValue(at("b20")), 0);
+    for (CompletableFuture<Boolean> future : futures) {
+      assertTrue(future.get());
+    }
+  }
+
+  /** Makes a1 feed a chain a2 = a1 + 1, a3 = a2 + 1, and so on down the column. */
+  private static Spreadsheet column(Deque<Runnable> tasks, int rows)
+      throws InvalidSyntaxException {
+    Spreadsheet spreadsheet = new Spreadsheet();
+    spreadsheet.setRecalculationExecutor(tasks::add);
+    spreadsheet.setCellExpression(at("a1"), "0");
+    for (int row = 2; row <= rows; row++) {
+      spreadsheet.setCellExpression(at("a" + row), "a" + (row - 1) + " + 1");
+    }
+    return spreadsheet;
+  }
+
+  @Test
+  public void testBudgetYields() throws Exception {
+    Deque<Runnable> tasks = new ArrayDeque<>();
+    Spreadsheet spreadsheet = column(tasks, 1000);
+    spreadsheet.setRecalculationBudget(Duration.ofNanos(1));
+    CompletableFuture<Boolean> done = spreadsheet.setCellExpressionAsync(at("a1"), "3");
+    int ran = 0;
+    while (!tasks.isEmpty()) {
+      tasks.poll().run();
+      ran++;
+    }
+    assertTrue(ran > 1);
+    assertTrue(done.get(0, TimeUnit.SECONDS));
+    assertEquals(1002.0, spreadsheet.getCellValue(at("a1000")), 0);
+  }
+
+  @Test
+  public void testNewerEditSupersedesPass() throws Exception {
+    Deque<Runnable> tasks = new ArrayDeque<>();
+    Spreadsheet spreadsheet = column(tasks, 1000);
+    spreadsheet.setRecalculationBudget(Duration.ofNanos(1));
+    long before = spreadsheet.getEvaluationCount();
+    CompletableFuture<Boolean> older = spreadsheet.setCellExpressionAsync(at("a1"), "3");
+    for (int i = 0; i < 5; i++) {
+      tasks.poll().run();
+    }
+    assertFalse(older.isDone());
+    CompletableFuture<Boolean> newer = spreadsheet.setCellExpressionAsync(at("a1"), "7");
+    // The pass in progress is carried on with the newer input, not finished with the older one.
+    assertEquals(1, tasks.size());
+    while (!tasks.isEmpty()) {
+      tasks.poll().run();
+    }
+    assertTrue(older.get(0, TimeUnit.SECONDS));
+    assertTrue(newer.get(0, TimeUnit.SECONDS));
+    assertEquals(1006.0, spreadsheet.getCellValue(at("a1000")), 0);
+    assertTrue(spreadsheet.getEvaluationCount() - before < 2 * 1000);
+  }
+
+  @Test(timeout = 60000)
+  public void testGivesWayToWaitingEdits() throws Exception {
+    Spreadsheet spreadsheet = new Spreadsheet();
+    spreadsheet.setCellExpression(at("a1"), "0");
+    for (int row = 1; row <= 2000; row++) {
+      spreadsheet.setCellExpression(at("b" + row), "a1 + " + row);
+    }
+    spreadsheet.setRecalculationExecutor(runnable -> new Thread(runnable).start());
+    List<CompletableFuture<Boolean>> futures = new ArrayList<>();
+    for (int value = 1; value <= 20; value++) {
+      futures.add(spreadsheet.setCellExpressionAsync(at("a1"), Integer.toString(value)));
+      spreadsheet.setCellExpression(at("c1"), "b2000 * 0 + " + value);
+    }
+    spreadsheet.awaitRecalculation();
+    for (CompletableFuture<Boolean> future : futures) {
+      assertTrue(future.get());
+    }
+    assertEquals(2020.0, spreadsheet.getCellValue(at("b2000")), 0);
+    assertEquals(20.0, spreadsheet.getCellValue(at("c1")), 0);
+  }
+
+  /** Settles an edit of the root of a long chain, running the tasks as they are queued. */
+  private static long settleChain(Spreadsheet spreadsheet, Deque<Runnable> tasks, int value)
+      throws Exception {
+    long started = System.nanoTime();
+    CompletableFuture<Boolean> done =
+        spreadsheet.setCellExpressionAsync(at("a1"), Integer.toString(value));
+    while (!tasks.isEmpty()) {
+      tasks.poll().run();
+    }
+    assertTrue(done.get(0, TimeUnit.SECONDS));
+    return System.nanoTime() - started;
+  }
+
+  @Test(timeout = 60000)
+  public void testBudgetKeepsSettlingLinear() throws Exception {
+    Deque<Runnable> tasks = new ArrayDeque<>();
+    Spreadsheet spreadsheet = column(tasks, 20000);
+    settleChain(spreadsheet, tasks, 1);
+    long unbudgeted = settleChain(spreadsheet, tasks, 2);
+
+    // The shortest budget possible stops every few cells, and each task resumes where the last
+    // one stopped rather than starting over.
+    spreadsheet.setRecalculationBudget(Duration.ofNanos(1));
+    long budgeted = settleChain(spreadsheet, tasks, 3);
+    assertEquals(20002.0, spreadsheet.getCellValue(at("a20000")), 0);
+    assertTrue("took " + budgeted / 1e6 + "ms against " + unbudgeted / 1e6 + "ms",
+        budgeted < 20 * unbudgeted + 1_000_000_000L);
+  }
+}
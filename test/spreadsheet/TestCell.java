@@ -172,6 +172,47 @@ public class TestCell {
     assertEquals(2, s.recalculationCount(B2));
   }
 
+  /**
+   * Tests that clearing a cell that no spreadsheet owns resets its value straight away.
+   *
+   * @throws InvalidSyntaxException if a spurious parse error occurs.
+   */
+  @Test
+  public void testSetEmptyResetsValue() throws InvalidSyntaxException {
+    Cell c = new Cell(new FakeSpreadsheet(), A1);
+    c.setExpression("5.0");
+    c.recalculate();
+    assertEquals(5.0, c.getValue(), 0.0);
+    c.setEmpty();
+    assertEquals("", c.getExpression());
+    assertEquals(0.0, c.getValue(), 0.0);
+  }
+
+  /**
+   * Tests that a cell owned by a spreadsheet recalculates its dependents, and keeps its dependents
+   * in the spreadsheet's graph.
+   *
+   * @throws InvalidSyntaxException if a spurious parse error occurs.
+   */
+  @Test
+  public void testOwnedCellRecalculate() throws InvalidSyntaxException {
+    Spreadsheet s = new Spreadsheet();
+    s.setCellExpression(A1, "1");
+    s.setCellExpression(B1, "a1 + 1");
+    Cell c = s.getCell(A1);
+
+    c.setExpression("5");
+    c.recalculate();
+    assertEquals(5.0, s.getCellValue(A1), 0.0);
+    assertEquals(6.0, s.getCellValue(B1), 0.0);
+
+    DependencyGraph graph = s.getGraph();
+    c.addDependent(B2);
+    assertEquals(2, graph.dependentCount(c.getId()));
+    c.removeDependent(B2);
+    assertEquals(1, graph.dependentCount(c.getId()));
+  }
+
   /**
    * Tests whether cells accurately report their references.
    *
@@ -0,0 +1,62 @@
+package spreadsheet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+import common.api.CellLocation;
+import org.junit.Test;
+
+public class TestCellLocation {
+
+  @Test
+  public void testColumnNames() {
+    assertEquals("a", CellLocation.getColumnName(0));
+    assertEquals("z", CellLocation.getColumnName(25));
+    assertEquals("aa", CellLocation.getColumnName(26));
+    assertEquals("az", CellLocation.getColumnName(51));
+    assertEquals("ba", CellLocation.getColumnName(52));
+    assertEquals("zz", CellLocation.getColumnName(701));
+    assertEquals("aaa", CellLocation.getColumnName(702));
+  }
+
+  @Test
+  public void testRowAndColumn() {
+    CellLocation location = new CellLocation("AB12");
+    assertEquals(11, location.getRow());
+    assertEquals(27, location.getColumn());
+    assertEquals(-1, new CellLocation("a0").getRow());
+    assertEquals(-1, new CellLocation("12").getColumn());
+    assertEquals(-1, new CellLocation("a99999999999").getRow());
+  }
+
+  @Test
+  public void testRoundTrip() {
+    for (int column = 0; column < 2000; column += 7) {
+      for (int row = 0; row < 300; row += 13) {
+        CellLocation location = new CellLocation(row, column);
+        assertEquals(row, location.getRow());
+        assertEquals(column, location.getColumn());
+        assertEquals(location, new CellLocation(location.toString()));
+      }
+    }
+  }
+
+  @Test
+  public void testNormalization() {
+    CellLocation location = new CellLocation(4, 29);
+    assertEquals(location, new CellLocation(" AD5 "));
+    assertEquals(location.hashCode(), new CellLocation("aD5").hashCode());
+    assertEquals("ad5", new CellLocation(" AD5\t").toString());
+    assertEquals("a0", new CellLocation("A0").toString());
+  }
+
+  @Test
+  public void testUnpackedLocations() {
+    assertNotEquals(new CellLocation("a1"), new CellLocation("a01"));
+    assertEquals(new CellLocation("a01"), new CellLocation(" A01"));
+    assertEquals("a01", new CellLocation("A01").toString());
+    assertEquals(-1, new CellLocation("a01").getRow());
+    assertEquals("a1b", new CellLocation("A1B").toString());
+    assertNotEquals(new CellLocation("a1b"), new CellLocation("a1"));
+  }
+}
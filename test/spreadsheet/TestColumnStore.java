@@ -0,0 +1,128 @@
+package spreadsheet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static spreadsheet.TokensMatcher.matchesTokens;
+
+import common.api.CellLocation;
+import org.junit.Test;
+
+public class TestColumnStore {
+
+  private static final double TOLERANCE = 0.0001;
+
+  @Test
+  public void testPutGetRemove() {
+    ColumnStore store = new ColumnStore();
+    store.put(0, 0, 1.5);
+    store.put(5000, 3, -2.0);
+    store.put(5000, 3, 4.0);
+
+    assertTrue(store.contains(0, 0));
+    assertTrue(store.contains(5000, 3));
+    assertFalse(store.contains(1, 0));
+    assertFalse(store.contains(5000, 2));
+    assertFalse(store.contains(5000, 40));
+    assertEquals(1.5, store.get(0, 0), 0.0);
+    assertEquals(4.0, store.get(5000, 3), 0.0);
+    assertEquals(2, store.size());
+
+    store.remove(5000, 3);
+    store.remove(5000, 3);
+    assertFalse(store.contains(5000, 3));
+    assertEquals(1, store.size());
+  }
+
+  @Test
+  public void testForEach() {
+    ColumnStore store = new ColumnStore();
+    store.put(70, 2, 3.0);
+    store.put(ColumnStore.CHUNK_ROWS + 1, 0, 2.0);
+    store.put(63, 0, 1.0);
+    StringBuilder visited = new StringBuilder();
+    store.forEach((row, column, value) ->
+        visited.append(row).append(',').append(column).append('=').append(value).append(' '));
+    assertEquals("63,0=1.0 " + (ColumnStore.CHUNK_ROWS + 1) + ",0=2.0 70,2=3.0 ",
+        visited.toString());
+  }
+
+  @Test
+  public void testEmptyChunksDropped() {
+    ColumnStore store = new ColumnStore();
+    store.put(0, 0, 1.0);
+    store.put(ColumnStore.CHUNK_ROWS, 0, 1.0);
+    long two = store.allocatedBytes();
+    store.remove(ColumnStore.CHUNK_ROWS, 0);
+    assertEquals(8 * ColumnStore.CHUNK_ROWS * 65 / 64, two - store.allocatedBytes());
+  }
+
+  /** Tests that a dense block of constants takes less than 12 bytes a cell. */
+  @Test
+  public void testDenseFootprint() {
+    ColumnStore store = new ColumnStore();
+    for (int column = 0; column < 10; column++) {
+      for (int row = 0; row < 100_000; row++) {
+        store.put(row, column, row * column);
+      }
+    }
+    assertEquals(1_000_000, store.size());
+    assertTrue(store.allocatedBytes() < 12 * store.size());
+    assertEquals(99_999 * 9, store.get(99_999, 9), 0.0);
+  }
+
+  @Test
+  public void testColumnarSpreadsheet() throws InvalidSyntaxException {
+    Spreadsheet spreadsheet =
+        new Spreadsheet(Spreadsheet.EvaluationMode.EAGER, Spreadsheet.Storage.COLUMNS);
+    CellLocation a1 = new CellLocation("a1");
+    CellLocation a2 = new CellLocation("a2");
+    CellLocation b1 = new CellLocation("b1");
+
+    spreadsheet.setCellExpression(a1, "2");
+    spreadsheet.setCellExpression(a2, "5.5");
+    assertEquals(2, spreadsheet.getCellValue(a1), TOLERANCE);
+    assertThat(spreadsheet.getCellExpression(a2), matchesTokens("5.5"));
+    assertEquals("5.5", spreadsheet.getCellDisplay(a2));
+    assertNull(spreadsheet.getCell(a1));
+
+    // referencing a constant turns it into a cell that recalculates its dependents
+    spreadsheet.setCellExpression(b1, "a1 * a2");
+    assertEquals(11, spreadsheet.getCellValue(b1), TOLERANCE);
+    spreadsheet.setCellExpression(a1, "3");
+    assertEquals(16.5, spreadsheet.getCellValue(b1), TOLERANCE);
+
+    // once nothing references it, it goes back to the store
+    spreadsheet.setCellExpression(b1, "2");
+    spreadsheet.setCellExpression(a1, "4");
+    assertNull(spreadsheet.getCell(a1));
+    assertEquals(4, spreadsheet.getCellValue(a1), TOLERANCE);
+
+    spreadsheet.setCellExpression(a2, "");
+    assertEquals("", spreadsheet.getCellDisplay(a2));
+    assertEquals(0, spreadsheet.getCellValue(a2), TOLERANCE);
+  }
+
+  @Test
+  public void testColumnarMatchesCells() throws InvalidSyntaxException {
+    Spreadsheet cells = new Spreadsheet();
+    Spreadsheet columns =
+        new Spreadsheet(Spreadsheet.EvaluationMode.EAGER, Spreadsheet.Storage.COLUMNS);
+    for (Spreadsheet spreadsheet : new Spreadsheet[] {cells, columns}) {
+      for (int row = 0; row < 50; row++) {
+        spreadsheet.setCellExpression(new CellLocation(row, 0), Integer.toString(row));
+        spreadsheet.setCellExpression(new CellLocation(row, 27), "a" + (row + 1) + " * 2");
+      }
+      spreadsheet.setCellExpression(new CellLocation("a7"), "100");
+    }
+    for (int row = 0; row < 50; row++) {
+      for (int column : new int[] {0, 27}) {
+        CellLocation location = new CellLocation(row, column);
+        assertEquals(cells.getCellValue(location), columns.getCellValue(location), 0.0);
+        assertEquals(cells.getCellExpression(location), columns.getCellExpression(location));
+      }
+    }
+  }
+}
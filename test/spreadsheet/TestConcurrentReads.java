@@ -0,0 +1,104 @@
+package spreadsheet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import common.api.CellLocation;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.Test;
+
+public class TestConcurrentReads {
+
+  private static final int DEPENDENTS = 600;
+  private static final int EDITS = 200;
+  private static final CellLocation A1 = new CellLocation("a1");
+
+  private static CellLocation dependent(int i) {
+    return new CellLocation("b" + (i + 1));
+  }
+
+  private static Spreadsheet fanOut(Spreadsheet spreadsheet) throws InvalidSyntaxException {
+    spreadsheet.setCellExpression(A1, "0");
+    for (int i = 0; i < DEPENDENTS; i++) {
+      spreadsheet.setCellExpression(dependent(i), "a1 + " + i);
+    }
+    return spreadsheet;
+  }
+
+  /**
+   * Edits a1 from 1 up to {@link #EDITS} while readers check that each dependent only ever shows
+   * a value that a committed edit gave it, and never goes back to an older one.
+   */
+  private static void editWhileReading(Spreadsheet spreadsheet) throws Exception {
+    AtomicBoolean done = new AtomicBoolean();
+    AtomicReference<Throwable> failure = new AtomicReference<>();
+    List<Thread> readers = new ArrayList<>();
+    for (int r = 0; r < 3; r++) {
+      Random random = new Random(r);
+      Thread reader = new Thread(() -> {
+        double[] seen = new double[DEPENDENTS];
+        try {
+          while (!done.get()) {
+            int i = random.nextInt(DEPENDENTS);
+            double edit = spreadsheet.getCellValue(dependent(i)) - i;
+            assertTrue("saw " + edit, edit == Math.rint(edit) && edit >= seen[i] && edit <= EDITS);
+            seen[i] = edit;
+            String display = spreadsheet.getCellDisplay(dependent(i));
+            assertTrue("showed " + display, Double.parseDouble(display) - i >= edit);
+          }
+        } catch (Throwable t) {
+          failure.compareAndSet(null, t);
+        }
+      });
+      readers.add(reader);
+      reader.start();
+    }
+    for (int edit = 1; edit <= EDITS; edit++) {
+      spreadsheet.setCellExpression(A1, Integer.toString(edit));
+    }
+    done.set(true);
+    for (Thread reader : readers) {
+      reader.join();
+    }
+    if (failure.get() != null) {
+      throw new AssertionError(failure.get());
+    }
+    for (int i = 0; i < DEPENDENTS; i++) {
+      assertEquals(EDITS + i, spreadsheet.getCellValue(dependent(i)), 0);
+    }
+  }
+
+  @Test(timeout = 60000)
+  public void testLazyReadersRefreshingCells() throws Exception {
+    editWhileReading(fanOut(new Spreadsheet(Spreadsheet.EvaluationMode.LAZY)));
+  }
+
+  @Test(timeout = 60000)
+  public void testReadersDuringParallelRecalculation() throws Exception {
+    ForkJoinPool pool = new ForkJoinPool(2);
+    try {
+      Spreadsheet spreadsheet = new Spreadsheet();
+      spreadsheet.setRecalculationPool(pool, 1);
+      editWhileReading(fanOut(spreadsheet));
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  @Test(timeout = 60000)
+  public void testReadsInsideAnEdit() throws Exception {
+    Spreadsheet spreadsheet = new Spreadsheet(Spreadsheet.EvaluationMode.LAZY);
+    spreadsheet.setCellExpression(A1, "2");
+    spreadsheet.setCellExpression(dependent(0), "a1 * a1");
+    spreadsheet.setCellExpression(dependent(1), "sum(b1:b1) + b1");
+    spreadsheet.setCellExpression(A1, "3");
+    // Refreshing b2 reads b1 and a1 while holding the write lock on the reading thread.
+    assertEquals(18.0, spreadsheet.getCellValue(dependent(1)), 0);
+    assertEquals("9.0", spreadsheet.getCellDisplay(dependent(0)));
+  }
+}
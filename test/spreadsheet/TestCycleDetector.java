@@ -154,6 +154,25 @@ public class TestCycleDetector {
     assertFalse(c.hasCycleFrom(B2));
   }
 
+  /** Tests that the cycle detector copes with chains far deeper than the call stack. */
+  @Test
+  public void testDeepChain() {
+    FakeSpreadsheet t = new FakeSpreadsheet();
+    CycleDetector c = new CycleDetector(t);
+
+    int depth = 1_000_000;
+    for (int row = 2; row <= depth; row++) {
+      t.dependencyEdges.put(
+          new CellLocation("a" + row), new CellLocation[] {new CellLocation("a" + (row - 1))});
+    }
+    CellLocation tail = new CellLocation("a" + depth);
+    assertFalse(c.hasCycleFrom(tail));
+
+    t.dependencyEdges.put(A1, new CellLocation[] {tail});
+    assertTrue(c.hasCycleFrom(tail));
+    assertTrue(c.hasCycleFrom(A1));
+  }
+
   /** A fake spreadsheet that only implements the methods needed for cycle detection. */
   private static class FakeSpreadsheet implements BasicSpreadsheet {
 
@@ -0,0 +1,122 @@
+package spreadsheet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import common.api.CellLocation;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import org.junit.Test;
+
+public class TestDependencyGraph {
+
+  private static Set<Integer> dependents(DependencyGraph graph, int id) {
+    Set<Integer> result = new HashSet<>();
+    for (int slot = 0; slot < graph.dependentSlots(id); slot++) {
+      if (graph.dependent(id, slot) >= 0) {
+        result.add(graph.dependent(id, slot));
+      }
+    }
+    return result;
+  }
+
+  private static Set<Integer> precedents(DependencyGraph graph, int id) {
+    Set<Integer> result = new HashSet<>();
+    for (int slot = 0; slot < graph.precedentSlots(id); slot++) {
+      if (graph.precedent(id, slot) >= 0) {
+        result.add(graph.precedent(id, slot));
+      }
+    }
+    return result;
+  }
+
+  @Test
+  public void testEdges() {
+    DependencyGraph graph = new DependencyGraph();
+    int a1 = graph.add(new CellLocation("a1"));
+    int b1 = graph.add(new CellLocation("b1"));
+    int c1 = graph.add(new CellLocation("c1"));
+
+    assertTrue(graph.addEdge(b1, a1));
+    assertTrue(graph.addEdge(c1, a1));
+    assertTrue(graph.addEdge(c1, b1));
+    assertFalse(graph.addEdge(c1, b1));
+    assertEquals(Set.of(b1, c1), dependents(graph, a1));
+    assertEquals(Set.of(a1, b1), precedents(graph, c1));
+    assertEquals(3, graph.edgeCount());
+
+    graph.removeEdge(c1, a1);
+    graph.removeEdge(c1, a1);
+    assertEquals(Set.of(b1), dependents(graph, a1));
+    assertEquals(1, graph.dependentCount(a1));
+    assertEquals(1, graph.precedentCount(c1));
+    assertEquals(new CellLocation("c1"), graph.getLocation(c1));
+  }
+
+  @Test
+  public void testIdsReused() {
+    DependencyGraph graph = new DependencyGraph();
+    int a1 = graph.add(new CellLocation("a1"));
+    int b1 = graph.add(new CellLocation("b1"));
+    graph.addEdge(b1, a1);
+    graph.removeEdge(b1, a1);
+    graph.remove(a1);
+    assertEquals(a1, graph.add(new CellLocation("c1")));
+    assertEquals(2, graph.capacity());
+    assertEquals(Set.of(), dependents(graph, a1));
+  }
+
+  /** Tests random edits against a plain set of edges, across many compactions. */
+  @Test
+  public void testRandomEdits() {
+    Random random = new Random(7);
+    int nodes = 300;
+    DependencyGraph graph = new DependencyGraph();
+    for (int i = 0; i < nodes; i++) {
+      graph.add(new CellLocation(i, 0));
+    }
+    Set<List<Integer>> edges = new HashSet<>();
+    for (int edit = 0; edit < 50_000; edit++) {
+      int from = random.nextInt(nodes);
+      int to = random.nextInt(nodes);
+      if (random.nextInt(3) == 0) {
+        graph.removeEdge(from, to);
+        edges.remove(List.of(from, to));
+      } else {
+        assertEquals(edges.add(List.of(from, to)), graph.addEdge(from, to));
+      }
+    }
+    assertEquals(edges.size(), graph.edgeCount());
+    for (int id = 0; id < nodes; id++) {
+      Set<Integer> expectedDependents = new HashSet<>();
+      Set<Integer> expectedPrecedents = new HashSet<>();
+      for (List<Integer> edge : edges) {
+        if (edge.get(1) == id) {
+          expectedDependents.add(edge.get(0));
+        }
+        if (edge.get(0) == id) {
+          expectedPrecedents.add(edge.get(1));
+        }
+      }
+      assertEquals(expectedDependents, dependents(graph, id));
+      assertEquals(expectedPrecedents, precedents(graph, id));
+      assertEquals(expectedDependents.size(), graph.dependentCount(id));
+    }
+  }
+
+  @Test
+  public void testSpreadsheetReferences() throws InvalidSyntaxException {
+    Spreadsheet spreadsheet = new Spreadsheet();
+    spreadsheet.setCellExpression(new CellLocation("c1"), "a1 + b1 * a1");
+    Set<CellLocation> target = new HashSet<>();
+    spreadsheet.findCellReferences(new CellLocation("c1"), target);
+    assertEquals(Set.of(new CellLocation("a1"), new CellLocation("b1")), target);
+    assertEquals(2, spreadsheet.getGraph().edgeCount());
+
+    spreadsheet.setCellExpression(new CellLocation("c1"), "2");
+    assertEquals(0, spreadsheet.getGraph().edgeCount());
+  }
+}
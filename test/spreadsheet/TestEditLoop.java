@@ -0,0 +1,225 @@
+package spreadsheet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import common.api.CellLocation;
+import common.api.Expression;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.Test;
+
+public class TestEditLoop {
+
+  private static CellLocation at(String location) {
+    return new CellLocation(location);
+  }
+
+  /**
+   * Makes writer threads that wait for a latch, so that every edit submitted before it opens is
+   * applied in one batch.
+   */
+  private static ThreadFactory heldBack(CountDownLatch start) {
+    return runnable -> new Thread(() -> {
+      try {
+        start.await();
+      } catch (InterruptedException e) {
+        return;
+      }
+      runnable.run();
+    });
+  }
+
+  private static Map.Entry<CellLocation, Expression> edit(Spreadsheet spreadsheet, String location,
+      String input) throws InvalidSyntaxException {
+    return new AbstractMap.SimpleImmutableEntry<>(at(location), spreadsheet.parse(input));
+  }
+
+  @Test(timeout = 60000)
+  public void testEditsApplyInOrder() throws Exception {
+    Spreadsheet spreadsheet = new Spreadsheet();
+    try (EditLoop loop = new EditLoop(spreadsheet, 4, Thread::new)) {
+      loop.setCellExpression(at("a1"), "1");
+      loop.submit(at("b1"), "a1 + 1");
+      loop.submit(at("b1"), "a1 + 2");
+      loop.submit(at("a1"), "5");
+      // Rejected as a cycle, however it is batched with the edits around it.
+      loop.submit(at("a1"), "b1 * 2");
+      long last = loop.submit(at("c1"), "b1 * 10");
+      loop.awaitApplied(last);
+      assertEquals(5.0, loop.getCellValue(at("a1")), 0);
+      assertEquals(7.0, loop.getCellValue(at("b1")), 0);
+      assertEquals(70.0, loop.getCellValue(at("c1")), 0);
+
+      loop.addDependency(at("d1"), at("c1"));
+      loop.setCellExpression(at("b1"), "");
+      assertEquals(0.0, loop.getCellValue(at("c1")), 0);
+    }
+  }
+
+  @Test(timeout = 60000)
+  public void testBatchMatchesEditsOneByOne() throws Exception {
+    Spreadsheet spreadsheet = new Spreadsheet();
+    spreadsheet.setCellExpression(at("d1"), "c1");
+    CountDownLatch start = new CountDownLatch(1);
+    try (EditLoop loop = new EditLoop(spreadsheet, 8, heldBack(start))) {
+      loop.submit(at("a1"), "b1");
+      // Rejected, as a1 reads b1 at this point even though a later edit changes a1 again.
+      loop.submit(at("b1"), "a1");
+      loop.submit(at("a1"), "1");
+      // Rejected, as d1 still reads c1.
+      loop.submit(at("c1"), "d1");
+      long last = loop.submit(at("d1"), "2");
+      start.countDown();
+      loop.awaitApplied(last);
+      assertEquals(1.0, loop.getCellValue(at("a1")), 0);
+      assertEquals("", loop.getCellExpression(at("b1")));
+      assertEquals("", loop.getCellExpression(at("c1")));
+      assertEquals(2.0, loop.getCellValue(at("d1")), 0);
+    }
+  }
+
+  @Test(timeout = 60000)
+  public void testBatchClearsAndRepeats() throws Exception {
+    Spreadsheet spreadsheet = new Spreadsheet();
+    spreadsheet.setCellExpression(at("a1"), "5");
+    spreadsheet.setCellExpression(at("b1"), "a1");
+    CountDownLatch start = new CountDownLatch(1);
+    try (EditLoop loop = new EditLoop(spreadsheet, 8, heldBack(start))) {
+      loop.submit(at("a1"), "");
+      loop.submit(at("b1"), "1");
+      loop.submit(at("c1"), "2");
+      loop.submit(at("c1"), "");
+      long last = loop.submit(at("b1"), "a1 + 3");
+      start.countDown();
+      loop.awaitApplied(last);
+      assertEquals(3.0, loop.getCellValue(at("b1")), 0);
+      assertEquals("", loop.getCellExpression(at("c1")));
+      assertNull(spreadsheet.getCell(at("c1")));
+      loop.setCellExpression(at("a1"), "4");
+      assertEquals(7.0, loop.getCellValue(at("b1")), 0);
+    }
+  }
+
+  @Test
+  public void testRepeatedLocationsInSequence() throws InvalidSyntaxException {
+    Spreadsheet spreadsheet = new Spreadsheet();
+    assertTrue(spreadsheet.setParsedCellExpressions(
+        List.of(edit(spreadsheet, "a1", "1"), edit(spreadsheet, "a1", ""))));
+    assertEquals("", spreadsheet.getCellExpression(at("a1")));
+    assertNull(spreadsheet.getCell(at("a1")));
+
+    spreadsheet.setCellExpression(at("b1"), "c1");
+    assertFalse(spreadsheet.setParsedCellExpressions(List.of(edit(spreadsheet, "a1", "1"),
+        edit(spreadsheet, "a1", "2"), edit(spreadsheet, "c1", "b1"))));
+    assertEquals("", spreadsheet.getCellExpression(at("a1")));
+    assertEquals("", spreadsheet.getCellExpression(at("c1")));
+    assertNull(spreadsheet.getCell(at("a1")));
+    spreadsheet.setCellExpression(at("c1"), "3");
+    assertEquals(3.0, spreadsheet.getCellValue(at("b1")), 0);
+  }
+
+  /**
+   * Tests that batches with repeated and cleared locations end up exactly where applying their
+   * edits one by one does.
+   */
+  @Test(timeout = 60000)
+  public void testBatchesMatchRandomEdits() throws Exception {
+    String[] locations = {"a1", "a2", "a3", "b1", "b2"};
+    for (int seed = 0; seed < 500; seed++) {
+      Random random = new Random(seed);
+      Spreadsheet.EvaluationMode mode = Spreadsheet.EvaluationMode.values()[seed % 2];
+      Spreadsheet expected = new Spreadsheet(mode);
+      Spreadsheet spreadsheet = new Spreadsheet(mode);
+      CountDownLatch start = new CountDownLatch(1);
+      try (EditLoop loop = new EditLoop(spreadsheet, 64, heldBack(start))) {
+        long last = -1;
+        for (int i = 0; i < 30; i++) {
+          String location = locations[random.nextInt(locations.length)];
+          String other = locations[random.nextInt(locations.length)];
+          String input = switch (random.nextInt(4)) {
+            case 0 -> "";
+            case 1 -> Integer.toString(random.nextInt(5));
+            case 2 -> other + " + 1";
+            default -> "1 / " + other;
+          };
+          expected.setCellExpression(at(location), input);
+          last = loop.submit(at(location), input);
+          if (random.nextInt(10) == 0) {
+            start.countDown();
+          }
+        }
+        start.countDown();
+        loop.awaitApplied(last);
+      }
+      for (String location : locations) {
+        String where = "seed " + seed + ", " + location;
+        assertEquals(where, expected.getCellExpression(at(location)),
+            spreadsheet.getCellExpression(at(location)));
+        assertEquals(where, expected.getCellValue(at(location)),
+            spreadsheet.getCellValue(at(location)), 0);
+      }
+    }
+  }
+
+  @Test
+  public void testCloseKeepsInterrupt() {
+    EditLoop loop = new EditLoop(new Spreadsheet());
+    Thread.currentThread().interrupt();
+    loop.close();
+    assertTrue(Thread.interrupted());
+  }
+
+  @Test(expected = InvalidSyntaxException.class)
+  public void testSyntaxErrorsReportedToClient() throws Exception {
+    try (EditLoop loop = new EditLoop(new Spreadsheet())) {
+      loop.submit(at("a1"), "2 $ 3");
+    }
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testClosed() throws Exception {
+    EditLoop loop = new EditLoop(new Spreadsheet());
+    loop.close();
+    loop.submit(at("a1"), "1");
+  }
+
+  @Test(timeout = 60000)
+  public void testManyClients() throws Exception {
+    Spreadsheet spreadsheet = new Spreadsheet();
+    spreadsheet.setCellExpression(at("b1"), "sum(a1:a200)");
+    AtomicReference<Throwable> failure = new AtomicReference<>();
+    List<Thread> clients = new ArrayList<>();
+    EditLoop loop = new EditLoop(spreadsheet, 64, Thread::new);
+    for (int client = 1; client <= 200; client++) {
+      CellLocation location = at("a" + client);
+      clients.add(new Thread(() -> {
+        try {
+          for (int value = 1; value <= 20; value++) {
+            loop.submit(location, Integer.toString(value));
+            loop.getCellValue(at("b1"));
+          }
+        } catch (Throwable t) {
+          failure.set(t);
+        }
+      }));
+    }
+    clients.forEach(Thread::start);
+    for (Thread client : clients) {
+      client.join();
+    }
+    loop.close();
+    if (failure.get() != null) {
+      throw new AssertionError(failure.get());
+    }
+    assertEquals(200 * 20.0, spreadsheet.getCellValue(at("b1")), 0);
+  }
+}
@@ -0,0 +1,76 @@
+package spreadsheet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import common.api.CellLocation;
+import java.lang.invoke.MethodHandle;
+import org.junit.Test;
+
+public class TestExpressionCompiler {
+
+  private static final double TOLERANCE = 0.0001;
+
+  private static final CellLocation A1 = new CellLocation("a1");
+  private static final CellLocation B1 = new CellLocation("b1");
+  private static final CellLocation C1 = new CellLocation("c1");
+
+  private static double compiled(Spreadsheet spreadsheet, String input) throws Throwable {
+    MethodHandle handle = ExpressionCompiler.compile(Parser.parse(input), spreadsheet);
+    return (double) handle.invokeExact();
+  }
+
+  /** Tests that compiled formulas compute the same values as the interpreter. */
+  @Test
+  public void testMatchesInterpreter() throws Throwable {
+    Spreadsheet spreadsheet = new Spreadsheet();
+    spreadsheet.setCellExpression(A1, "3");
+    spreadsheet.setCellExpression(B1, "0.5");
+    String[] inputs = {
+      "1", "1 + 2 * 4", "(1 + 2) * 4", "2 ^ 3 ^ 2", "1 - 2 - 4", "1 / 2 / 4",
+      "a1 * b1 + a1", "(a1 - b1) / (a1 + b1)", "a1 ^ b1", "c1 + 1"
+    };
+    for (String input : inputs) {
+      assertEquals(input, spreadsheet.evaluateExpression(input), compiled(spreadsheet, input), 0.0);
+    }
+  }
+
+  /** Tests that hot cells are compiled and keep tracking their precedents. */
+  @Test
+  public void testCompilesHotCells() throws InvalidSyntaxException {
+    Spreadsheet spreadsheet = new Spreadsheet();
+    spreadsheet.setCompileThreshold(3);
+    spreadsheet.setCellExpression(A1, "1");
+    spreadsheet.setCellExpression(B1, "a1 * 2 + 1");
+    spreadsheet.setCellExpression(C1, "b1 ^ 2");
+    assertFalse(spreadsheet.getCell(C1).isCompiled());
+
+    for (int i = 2; i <= 10; i++) {
+      spreadsheet.setCellExpression(A1, Integer.toString(i));
+      assertEquals(Math.pow(2 * i + 1, 2), spreadsheet.getCellValue(C1), TOLERANCE);
+    }
+    assertTrue(spreadsheet.getCell(B1).isCompiled());
+    assertTrue(spreadsheet.getCell(C1).isCompiled());
+
+    // a new expression drops the compiled form
+    spreadsheet.setCellExpression(C1, "b1 - 1");
+    assertFalse(spreadsheet.getCell(C1).isCompiled());
+    assertEquals(20.0, spreadsheet.getCellValue(C1), TOLERANCE);
+  }
+
+  /** Tests that compiled cells in a lazy spreadsheet still pull their dirty precedents. */
+  @Test
+  public void testCompiledLazyCells() throws InvalidSyntaxException {
+    Spreadsheet spreadsheet = new Spreadsheet(Spreadsheet.EvaluationMode.LAZY);
+    spreadsheet.setCompileThreshold(1);
+    spreadsheet.setCellExpression(A1, "1");
+    spreadsheet.setCellExpression(B1, "a1 + 1");
+    spreadsheet.setCellExpression(C1, "b1 * 10");
+    assertEquals(20.0, spreadsheet.getCellValue(C1), TOLERANCE);
+    assertTrue(spreadsheet.getCell(C1).isCompiled());
+
+    spreadsheet.setCellExpression(A1, "5");
+    assertEquals(60.0, spreadsheet.getCellValue(C1), TOLERANCE);
+  }
+}
@@ -0,0 +1,104 @@
+package spreadsheet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertThat;
+import static spreadsheet.TokensMatcher.matchesTokens;
+
+import common.api.CellLocation;
+import common.api.Expression;
+import org.junit.Test;
+
+public class TestExpressionInterner {
+
+  private static final double TOLERANCE = 0.0001;
+
+  private static final CellLocation A1 = new CellLocation("a1");
+  private static final CellLocation B1 = new CellLocation("b1");
+
+  /** Counts reads of a1, to see how often shared subexpressions are evaluated. */
+  private static class CountingSpreadsheet extends Spreadsheet {
+    int reads;
+
+    @Override
+    public double getCellValue(CellLocation location) {
+      if (location.equals(A1)) {
+        reads++;
+      }
+      return super.getCellValue(location);
+    }
+  }
+
+  private static Expression left(Expression expression) {
+    if (expression instanceof Memo memo) {
+      expression = memo.getExpression();
+    }
+    return ((BinApp) expression).getLeft();
+  }
+
+  @Test
+  public void testEqualSubtreesShared() throws InvalidSyntaxException {
+    ExpressionInterner interner = new ExpressionInterner(false);
+    Expression first = interner.intern(Parser.parse("a1 * b1 + 1"));
+    Expression second = interner.intern(Parser.parse("a1 * b1 + 2"));
+
+    assertNotSame(first, second);
+    assertSame(left(first), left(second));
+    assertSame(first, interner.intern(Parser.parse("a1 * b1 + 1")));
+    // a1, b1, a1 * b1, 1, 2 and the two sums
+    assertEquals(7, interner.size());
+  }
+
+  @Test
+  public void testSourceKept() throws InvalidSyntaxException {
+    ExpressionInterner interner = new ExpressionInterner(true);
+    Expression first = interner.intern(Parser.parse("(a1 * b1) * 1"));
+    Expression second = interner.intern(Parser.parse("a1 * b1"));
+
+    assertThat(first.toString(), matchesTokens("(((a1 * b1)) * 1)"));
+    assertSame(((Formula) first).getBody(), second);
+  }
+
+  /** Tests that a shared subexpression is only evaluated once per recalculation. */
+  @Test
+  public void testMemoizedOncePerPass() throws InvalidSyntaxException {
+    CountingSpreadsheet spreadsheet = new CountingSpreadsheet();
+    spreadsheet.setSharedExpressions(true, true);
+    spreadsheet.setCellExpression(A1, "2");
+    spreadsheet.setCellExpression(B1, "3");
+    for (int row = 1; row <= 100; row++) {
+      spreadsheet.setCellExpression(new CellLocation(row, 2), "a1 * b1 + " + row);
+    }
+
+    spreadsheet.reads = 0;
+    spreadsheet.setCellExpression(A1, "4");
+    assertEquals(1, spreadsheet.reads);
+    for (int row = 1; row <= 100; row++) {
+      assertEquals(12 + row, spreadsheet.getCellValue(new CellLocation(row, 2)), TOLERANCE);
+    }
+
+    spreadsheet.reads = 0;
+    spreadsheet.setCellExpression(B1, "5");
+    assertEquals(1, spreadsheet.reads);
+    assertEquals(20 + 100, spreadsheet.getCellValue(new CellLocation(100, 2)), TOLERANCE);
+  }
+
+  /** Tests that memoized subexpressions are brought up to date in lazy spreadsheets too. */
+  @Test
+  public void testMemoizedLazy() throws InvalidSyntaxException {
+    Spreadsheet spreadsheet = new Spreadsheet(Spreadsheet.EvaluationMode.LAZY);
+    spreadsheet.setSharedExpressions(true, true);
+    CellLocation c1 = new CellLocation("c1");
+    CellLocation c2 = new CellLocation("c2");
+    spreadsheet.setCellExpression(A1, "2");
+    spreadsheet.setCellExpression(B1, "a1 + 1");
+    spreadsheet.setCellExpression(c1, "a1 * b1");
+    spreadsheet.setCellExpression(c2, "a1 * b1 + c1");
+    assertEquals(12, spreadsheet.getCellValue(c2), TOLERANCE);
+
+    spreadsheet.setCellExpression(A1, "3");
+    assertEquals(12, spreadsheet.getCellValue(c1), TOLERANCE);
+    assertEquals(24, spreadsheet.getCellValue(c2), TOLERANCE);
+  }
+}
@@ -0,0 +1,79 @@
+package spreadsheet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import common.api.CellLocation;
+import common.lexer.InvalidTokenException;
+import common.lexer.Lexer;
+import common.lexer.Token;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+
+public class TestLexer {
+
+  private static String describe(List<Token> tokens) {
+    StringBuilder described = new StringBuilder();
+    for (Token token : tokens) {
+      described.append(token).append(' ');
+    }
+    return described.toString().trim();
+  }
+
+  private static void assertInvalid(String input) {
+    try {
+      Lexer.tokenize(input);
+      fail("expected an invalid token in " + input);
+    } catch (InvalidTokenException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testFormula() throws InvalidTokenException {
+    assertEquals("IDENTIFIER(sum) LPARENTHESIS CELL(a1) COLON CELL(b10) RPARENTHESIS PLUS "
+            + "NUMBER(2.5) STAR CELL(zz99) CARET NUMBER(3.0) MINUS NUMBER(0.1) SLASH NUMBER(4.0)",
+        describe(Lexer.tokenize("SUM(A1:b10)+2.5 *\tZz99^3 - 0.1/4")));
+    assertEquals("LANGLE RANGLE EQUALS", describe(Lexer.tokenize(" < > = ")));
+    assertEquals("", describe(Lexer.tokenize("  ")));
+  }
+
+  @Test
+  public void testCellLocations() throws InvalidTokenException {
+    for (String location : new String[] {"a1", "AB12", "a01", "a0", "a2147483648", "xfd1048576",
+        "zzzzzzzzzzzzzz1", "a99999999999999999999"}) {
+      Token token = Lexer.tokenize(location).get(0);
+      CellLocation expected = new CellLocation(location);
+      assertEquals(expected, token.cellLocationValue);
+      assertEquals(expected.getRow(), token.cellLocationValue.getRow());
+      assertEquals(expected.getColumn(), token.cellLocationValue.getColumn());
+      assertEquals(expected.toString(), token.cellLocationValue.toString());
+    }
+    assertInvalid("a1b");
+    assertInvalid("a1.5");
+  }
+
+  @Test
+  public void testNumbers() throws InvalidTokenException {
+    String[] numbers = {"0.1", "1.", "007", "1e22", "1e23", "1.5E3", "9007199254740993",
+        "123456789012345678901234.5", "0.000000000000000000000001", "1d"};
+    for (String number : numbers) {
+      assertEquals(Double.parseDouble(number), Lexer.tokenize(number).get(0).numberValue, 0.0);
+    }
+    assertInvalid("1e");
+    assertInvalid("1..2");
+    assertInvalid("2x");
+    assertInvalid("$");
+  }
+
+  @Test
+  public void testReusesBuffer() throws InvalidTokenException {
+    List<Token> buffer = new ArrayList<>();
+    assertSame(buffer, Lexer.tokenize("a1 + 1", buffer));
+    assertEquals(3, buffer.size());
+    Lexer.tokenize("b2", buffer);
+    assertEquals("CELL(b2)", describe(buffer));
+  }
+}
@@ -0,0 +1,138 @@
+package spreadsheet;
+
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThat;
+import static spreadsheet.EvaluationMatcher.evaluatesTo;
+import static spreadsheet.TokensMatcher.matchesTokens;
+
+import common.api.CellLocation;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+import org.junit.Test;
+
+public class TestPostfixProgram {
+
+  private static final double TOLERANCE = 0.0001;
+
+  private static PostfixProgram compile(String input) throws InvalidSyntaxException {
+    return PostfixProgram.compile(Parser.parse(input));
+  }
+
+  @Test
+  public void testEvaluate() throws InvalidSyntaxException {
+    assertThat(compile("5.678"), evaluatesTo(5.678));
+    assertThat(compile("1 + 2 * 4"), evaluatesTo(9));
+    assertThat(compile("(1 + 2) * 4"), evaluatesTo(12));
+    assertThat(compile("2 ^ 3 ^ 2"), evaluatesTo(512));
+    assertThat(compile("1 - 2 - 4"), evaluatesTo(-5));
+    assertThat(compile("1 / 2 / 4"), evaluatesTo(0.125));
+    assertThat(compile("a1 * (b1 + a1) / 2"), evaluatesTo(10).with("a1", 4).with("b1", 1));
+  }
+
+  @Test
+  public void testToString() throws InvalidSyntaxException {
+    assertThat(compile("1 + 2 * 4").toString(), matchesTokens("(1 + (2 * 4))"));
+    assertThat(compile("(a1 + b1) * 2").toString(), matchesTokens("((a1 + b1) * 2)"));
+    assertThat(compile("1 ^ 2 ^ 4").toString(), matchesTokens("(1 ^ (2 ^ 4))"));
+  }
+
+  /** Tests that a simplified formula runs its body but still prints as it was written. */
+  @Test
+  public void testSimplifiedSource() throws InvalidSyntaxException, IOException {
+    PostfixProgram program = compile("a1 * 1 + 0");
+    assertEquals(1, program.getCode().length);
+    assertThat(program.toString(), matchesTokens("((a1 * 1) + 0)"));
+    assertThat(compile("a1 + 2 * 3").toString(), matchesTokens("(a1 + (2 * 3))"));
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    program.writeTo(new DataOutputStream(bytes));
+    PostfixProgram copy = PostfixProgram.readFrom(
+        new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+    assertEquals(program.toString(), copy.toString());
+    assertThat(copy, evaluatesTo(4).with("a1", 4));
+
+  }
+
+  /** Tests that a compact formula reads back exactly as the same formula stored as a tree. */
+  @Test
+  public void testCompactExpressionMatchesTree() throws InvalidSyntaxException, IOException {
+    Spreadsheet tree = new Spreadsheet();
+    Spreadsheet compact = new Spreadsheet();
+    compact.setCompactFormulas(true);
+    CellLocation b1 = new CellLocation("b1");
+    for (String input : new String[] {"a1 * 1 + 0", "(((c3)*1.0)+0.0)", "((a1))", "(a1 + b2) * 2",
+        "1 + 2 * 4"}) {
+      tree.setCellExpression(b1, input);
+      compact.setCellExpression(b1, input);
+      assertEquals(input, tree.getCellExpression(b1), compact.getCellExpression(b1));
+    }
+
+    PostfixProgram program = (PostfixProgram) compact.parse("(((c3)*1.0)+0.0)");
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    program.writeTo(new DataOutputStream(bytes));
+    PostfixProgram copy = PostfixProgram.readFrom(
+        new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+    assertEquals(program.toString(), copy.toString());
+  }
+
+  @Test
+  public void testReferences() throws InvalidSyntaxException {
+    Set<String> result = new HashSet<>();
+    for (CellLocation cell : compile("a1 + c4 * a1 - w7").getCellReferences()) {
+      result.add(cell.toString());
+    }
+    assertThat(result, containsInAnyOrder("a1", "c4", "w7"));
+  }
+
+  @Test
+  public void testPools() throws InvalidSyntaxException {
+    PostfixProgram program = compile("a1 * 2 + a1 * 2");
+    assertEquals(7, program.getCode().length);
+    assertEquals(1, program.getConstants().length);
+    assertEquals(1, program.getSlots().length);
+  }
+
+  @Test
+  public void testSerialization() throws InvalidSyntaxException, IOException {
+    PostfixProgram program = compile("(a1 - 0.5) ^ b2 / 3");
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    program.writeTo(new DataOutputStream(bytes));
+    PostfixProgram copy = PostfixProgram.readFrom(
+        new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+
+    assertEquals(program.toString(), copy.toString());
+    assertThat(copy, evaluatesTo(Math.pow(3.5, 2) / 3).with("a1", 4).with("b2", 2));
+  }
+
+  /** Tests that a spreadsheet storing compact formulas behaves like one storing trees. */
+  @Test
+  public void testCompactSpreadsheet() throws InvalidSyntaxException {
+    Spreadsheet spreadsheet = new Spreadsheet();
+    spreadsheet.setCompactFormulas(true);
+    spreadsheet.setCompileThreshold(2);
+    CellLocation a1 = new CellLocation("a1");
+    CellLocation b1 = new CellLocation("b1");
+    CellLocation c1 = new CellLocation("c1");
+
+    spreadsheet.setCellExpression(a1, "8.0");
+    spreadsheet.setCellExpression(b1, "(a1 + 2) * a1");
+    spreadsheet.setCellExpression(c1, "b1 / a1");
+    assertThat(spreadsheet.getCellExpression(b1), matchesTokens("(((a1 + 2)) * a1)"));
+    assertEquals(80.0, spreadsheet.getCellValue(b1), TOLERANCE);
+
+    for (int i = 1; i <= 4; i++) {
+      spreadsheet.setCellExpression(a1, Integer.toString(i));
+      assertEquals(i + 2, spreadsheet.getCellValue(c1), TOLERANCE);
+    }
+
+    // cycles are still refused
+    spreadsheet.setCellExpression(a1, "c1");
+    assertThat(spreadsheet.getCellExpression(a1), matchesTokens("4"));
+  }
+}
@@ -0,0 +1,157 @@
+package spreadsheet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import common.api.CellLocation;
+import java.util.Random;
+import org.junit.Test;
+
+public class TestRangeSummaries {
+
+  private static final int ROWS = 40;
+
+  private static class CountingSpreadsheet extends Spreadsheet {
+    int reads;
+
+    CountingSpreadsheet(EvaluationMode mode) {
+      super(mode);
+    }
+
+    @Override
+    public double getCellValue(CellLocation location) {
+      reads++;
+      return super.getCellValue(location);
+    }
+  }
+
+  private static CellLocation at(String location) {
+    return new CellLocation(location);
+  }
+
+  @Test
+  public void testEditReadsOneCell() throws InvalidSyntaxException {
+    for (Spreadsheet.EvaluationMode mode : Spreadsheet.EvaluationMode.values()) {
+      CountingSpreadsheet spreadsheet = new CountingSpreadsheet(mode);
+      for (int row = 1; row <= 1000; row++) {
+        spreadsheet.setCellExpression(at("a" + row), Integer.toString(row));
+      }
+      spreadsheet.setCellExpression(at("b1"), "sum(a1:a1000)");
+      spreadsheet.setCellExpression(at("b2"), "max(a1:a1000)");
+      spreadsheet.setCellExpression(at("b3"), "average(a1:a1000)");
+      assertEquals(500500.0, spreadsheet.getCellValue(at("b1")), 0);
+      assertEquals(1000.0, spreadsheet.getCellValue(at("b2")), 0);
+
+      spreadsheet.reads = 0;
+      spreadsheet.setCellExpression(at("a1000"), "1");
+      spreadsheet.setCellExpression(at("a500"), "");
+      assertEquals(499001.0, spreadsheet.getCellValue(at("b1")), 0);
+      assertEquals(999.0, spreadsheet.getCellValue(at("b2")), 0);
+      assertEquals(499001.0 / 999, spreadsheet.getCellValue(at("b3")), 1e-9);
+      assertTrue("read " + spreadsheet.reads + " cells", spreadsheet.reads < 10);
+    }
+  }
+
+  @Test
+  public void testInfinity() throws InvalidSyntaxException {
+    for (Spreadsheet.EvaluationMode mode : Spreadsheet.EvaluationMode.values()) {
+      Spreadsheet spreadsheet = new Spreadsheet(mode);
+      spreadsheet.setCellExpression(at("a1"), "1");
+      spreadsheet.setCellExpression(at("a2"), "1 / b9");
+      spreadsheet.setCellExpression(at("b1"), "sum(a1:a2)");
+      assertEquals(Double.POSITIVE_INFINITY, spreadsheet.getCellValue(at("b1")), 0);
+      spreadsheet.setCellExpression(at("b9"), "2");
+      assertEquals(1.5, spreadsheet.getCellValue(at("b1")), 0);
+
+      spreadsheet.setCellExpression(at("c1"), "5");
+      spreadsheet.setCellExpression(at("c2"), "3");
+      spreadsheet.setCellExpression(at("d1"), "min(c1:c2)");
+      assertEquals(3.0, spreadsheet.getCellValue(at("d1")), 0);
+      spreadsheet.setCellExpression(at("c2"), "");
+      spreadsheet.setCellExpression(at("c1"), "1 / 0");
+      assertEquals(Double.POSITIVE_INFINITY, spreadsheet.getCellValue(at("d1")), 0);
+    }
+  }
+
+  @Test
+  public void testCancellation() throws InvalidSyntaxException {
+    for (Spreadsheet.EvaluationMode mode : Spreadsheet.EvaluationMode.values()) {
+      Spreadsheet spreadsheet = new Spreadsheet(mode);
+      spreadsheet.setCellExpression(at("a1"), "1e20");
+      spreadsheet.setCellExpression(at("a2"), "1");
+      spreadsheet.setCellExpression(at("b1"), "sum(a1:a2)");
+      spreadsheet.setCellExpression(at("b2"), "average(a1:a2)");
+      assertEquals(1e20, spreadsheet.getCellValue(at("b1")), 0);
+      spreadsheet.setCellExpression(at("a1"), "0");
+      assertEquals(1.0, spreadsheet.getCellValue(at("b1")), 0);
+      assertEquals(0.5, spreadsheet.getCellValue(at("b2")), 0);
+    }
+  }
+
+  @Test
+  public void testSharedRange() throws InvalidSyntaxException {
+    Spreadsheet spreadsheet = new Spreadsheet();
+    spreadsheet.setCellExpression(at("a1"), "3");
+    spreadsheet.setCellExpression(at("b1"), "sum(a1:a3)");
+    spreadsheet.setCellExpression(at("b2"), "sum(a1:a3) + min(a1:a3)");
+    spreadsheet.setCellExpression(at("b1"), "min(a1:a3)");
+    spreadsheet.setCellExpression(at("b2"), "");
+    spreadsheet.setCellExpression(at("a2"), "2");
+    assertEquals(2.0, spreadsheet.getCellValue(at("b1")), 0);
+    spreadsheet.setCellExpression(at("b1"), "");
+    spreadsheet.setCellExpression(at("b1"), "count(a1:a3)");
+    spreadsheet.setCellExpression(at("a3"), "7");
+    assertEquals(3.0, spreadsheet.getCellValue(at("b1")), 0);
+  }
+
+  @Test
+  public void testRandomEdits() throws InvalidSyntaxException {
+    Random random = new Random(17);
+    for (Spreadsheet.EvaluationMode mode : Spreadsheet.EvaluationMode.values()) {
+      for (Spreadsheet.Storage storage : Spreadsheet.Storage.values()) {
+        Spreadsheet spreadsheet = new Spreadsheet(mode, storage);
+        // Constants set before the formulas stay in the column store when it is used.
+        for (int row = 1; row <= ROWS; row += 2) {
+          spreadsheet.setCellExpression(at("a" + row), Integer.toString(row));
+        }
+        String range = "(a1:a" + ROWS + ")";
+        String[] functions = {"sum", "count", "average", "min", "max"};
+        for (int i = 0; i < functions.length; i++) {
+          spreadsheet.setCellExpression(at("c" + (i + 1)), functions[i] + range);
+        }
+        for (int edit = 0; edit < 400; edit++) {
+          int row = 1 + random.nextInt(ROWS);
+          String input = switch (random.nextInt(5)) {
+            case 0 -> "";
+            case 1 -> "d1 * 2";
+            case 2 -> row == 1 ? "d1" : "a" + (1 + random.nextInt(row - 1)) + " + 1";
+            case 3 -> "0 - " + random.nextInt(50);
+            default -> Integer.toString(random.nextInt(50));
+          };
+          spreadsheet.setCellExpression(at("a" + row), input);
+          if (random.nextInt(4) == 0) {
+            spreadsheet.setCellExpression(at("d1"), Integer.toString(random.nextInt(10)));
+          }
+          if (random.nextInt(3) == 0) {
+            assertSummaries(spreadsheet);
+          }
+        }
+        assertSummaries(spreadsheet);
+      }
+    }
+  }
+
+  private static void assertSummaries(Spreadsheet spreadsheet) {
+    Aggregate.Tally tally = new Aggregate.Tally();
+    for (int row = 1; row <= ROWS; row++) {
+      if (!spreadsheet.getCellExpression(at("a" + row)).isEmpty()) {
+        tally.add(spreadsheet.getCellValue(at("a" + row)));
+      }
+    }
+    Aggregate.Function[] functions = Aggregate.Function.values();
+    for (int i = 0; i < functions.length; i++) {
+      assertEquals(functions[i].toString(), tally.get(functions[i]),
+          spreadsheet.getCellValue(at("c" + (i + 1))), 1e-9);
+    }
+  }
+}
@@ -0,0 +1,233 @@
+package spreadsheet;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import common.api.CellLocation;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import org.junit.Test;
+
+public class TestRanges {
+
+  private static CellLocation at(String location) {
+    return new CellLocation(location);
+  }
+
+  private static Spreadsheet column(Spreadsheet spreadsheet, double... values)
+      throws InvalidSyntaxException {
+    for (int i = 0; i < values.length; i++) {
+      spreadsheet.setCellExpression(at("a" + (i + 1)), Double.toString(values[i]));
+    }
+    return spreadsheet;
+  }
+
+  @Test
+  public void testParse() throws InvalidSyntaxException {
+    assertEquals("sum(a1:b3)", Parser.parse("SUM(A1:B3)").toString());
+    assertEquals("max(b2:a1)", Parser.parse("max(b2:a1)").toString());
+    assertTrue(Parser.parse("sum(a1:a3)").getCellReferences().isEmpty());
+    for (String input : new String[] {"total(a1:a3)", "sum(a1)", "sum(a1:a3", "sum a1:a3"}) {
+      try {
+        Parser.parse(input);
+        fail("expected a syntax error for " + input);
+      } catch (InvalidSyntaxException e) {
+        // expected
+      }
+    }
+  }
+
+  @Test
+  public void testRange() throws InvalidSyntaxException {
+    Range range = new Range(at("c5"), at("a2"));
+    assertEquals(0, range.getLeft());
+    assertEquals(1, range.getTop());
+    assertEquals(2, range.getRight());
+    assertEquals(4, range.getBottom());
+    assertEquals(12, range.getArea());
+    assertTrue(range.contains(at("b3")));
+    assertTrue(!range.contains(at("d3")));
+    assertEquals("c5:a2", range.toString());
+  }
+
+  @Test
+  public void testFunctions() throws InvalidSyntaxException {
+    Spreadsheet spreadsheet = column(new Spreadsheet(), 4, 1, 7);
+    spreadsheet.setCellExpression(at("b1"), "sum(a1:a5)");
+    spreadsheet.setCellExpression(at("b2"), "count(a1:a5)");
+    spreadsheet.setCellExpression(at("b3"), "average(a1:a5)");
+    spreadsheet.setCellExpression(at("b4"), "min(a1:a5)");
+    spreadsheet.setCellExpression(at("b5"), "max(a1:a5) * 2");
+    spreadsheet.setCellExpression(at("b6"), "sum(c1:c9)");
+    spreadsheet.setCellExpression(at("b7"), "min(c1:c9)");
+
+    assertEquals(12.0, spreadsheet.getCellValue(at("b1")), 0);
+    assertEquals(3.0, spreadsheet.getCellValue(at("b2")), 0);
+    assertEquals(4.0, spreadsheet.getCellValue(at("b3")), 0);
+    assertEquals(1.0, spreadsheet.getCellValue(at("b4")), 0);
+    assertEquals(14.0, spreadsheet.getCellValue(at("b5")), 0);
+    assertEquals(0.0, spreadsheet.getCellValue(at("b6")), 0);
+    assertEquals(0.0, spreadsheet.getCellValue(at("b7")), 0);
+  }
+
+  @Test
+  public void testRecalculation() throws InvalidSyntaxException {
+    for (Spreadsheet.EvaluationMode mode : Spreadsheet.EvaluationMode.values()) {
+      Spreadsheet spreadsheet = column(new Spreadsheet(mode), 1, 2, 3);
+      spreadsheet.setCellExpression(at("b1"), "sum(a1:a10)");
+      spreadsheet.setCellExpression(at("c1"), "b1 + 1");
+
+      spreadsheet.setCellExpression(at("a2"), "20");
+      assertEquals(24.0, spreadsheet.getCellValue(at("b1")), 0);
+      // A cell created inside the range after the formula was set is picked up too.
+      spreadsheet.setCellExpression(at("a10"), "100");
+      assertEquals(124.0, spreadsheet.getCellValue(at("b1")), 0);
+      // So are changes that reach the range through a reference.
+      spreadsheet.setCellExpression(at("a3"), "d1");
+      spreadsheet.setCellExpression(at("d1"), "5");
+      assertEquals(126.0, spreadsheet.getCellValue(at("b1")), 0);
+      assertEquals(127.0, spreadsheet.getCellValue(at("c1")), 0);
+
+      spreadsheet.setCellExpression(at("a10"), "");
+      assertEquals(26.0, spreadsheet.getCellValue(at("b1")), 0);
+      spreadsheet.setCellExpression(at("b1"), "max(a1:a3)");
+      spreadsheet.setCellExpression(at("a2"), "1");
+      assertEquals(5.0, spreadsheet.getCellValue(at("b1")), 0);
+    }
+  }
+
+  @Test
+  public void testCycles() throws InvalidSyntaxException {
+    Spreadsheet spreadsheet = column(new Spreadsheet(), 1, 2);
+    spreadsheet.setCellExpression(at("a3"), "sum(a1:a3)");
+    assertEquals("", spreadsheet.getCellExpression(at("a3")));
+
+    spreadsheet.setCellExpression(at("b1"), "sum(a1:a3)");
+    spreadsheet.setCellExpression(at("a3"), "b1");
+    assertEquals("", spreadsheet.getCellExpression(at("a3")));
+    spreadsheet.setCellExpression(at("c1"), "b1");
+    spreadsheet.setCellExpression(at("a3"), "c1 * 2");
+    assertEquals("", spreadsheet.getCellExpression(at("a3")));
+    assertEquals(3.0, spreadsheet.getCellValue(at("b1")), 0);
+
+    // Once the formula moves off the range, the same edit is fine.
+    spreadsheet.setCellExpression(at("b1"), "sum(a1:a2)");
+    spreadsheet.setCellExpression(at("a3"), "c1 * 2");
+    assertEquals(6.0, spreadsheet.getCellValue(at("a3")), 0);
+  }
+
+  @Test
+  public void testColumnStorage() throws InvalidSyntaxException {
+    Spreadsheet spreadsheet = new Spreadsheet(
+        Spreadsheet.EvaluationMode.EAGER, Spreadsheet.Storage.COLUMNS);
+    column(spreadsheet, 1, 2, 3, 4);
+    spreadsheet.setCellExpression(at("b1"), "sum(a1:a4)");
+    assertEquals(10.0, spreadsheet.getCellValue(at("b1")), 0);
+    spreadsheet.setCellExpression(at("a4"), "40");
+    assertEquals(46.0, spreadsheet.getCellValue(at("b1")), 0);
+    spreadsheet.setCellExpression(at("a4"), "");
+    assertEquals(6.0, spreadsheet.getCellValue(at("b1")), 0);
+  }
+
+  @Test
+  public void testLargeRangeAddsNoEdges() throws InvalidSyntaxException {
+    Spreadsheet spreadsheet = new Spreadsheet();
+    spreadsheet.setCellExpression(at("b1"), "sum(a1:a1000000)");
+    spreadsheet.setCellExpression(at("c1"), "b1");
+    spreadsheet.setCellExpression(at("a1"), "1");
+    spreadsheet.setCellExpression(at("a999999"), "2");
+    assertEquals(3.0, spreadsheet.getCellValue(at("c1")), 0);
+    assertEquals(1, spreadsheet.getGraph().edgeCount());
+  }
+
+  @Test
+  public void testIndex() throws InvalidSyntaxException {
+    RangeIndex index = new RangeIndex();
+    index.add(new Range(at("a1"), at("b10")), 1);
+    index.add(new Range(at("b5"), at("c1000000")), 2);
+    index.add(new Range(at("a1"), at("b10")), 3);
+
+    assertArrayEquals(new int[] {1, 3}, sorted(index.covering(0, 0)));
+    assertArrayEquals(new int[] {1, 2, 3}, sorted(index.covering(4, 1)));
+    assertArrayEquals(new int[] {2}, sorted(index.covering(999999, 2)));
+    assertArrayEquals(new int[0], index.covering(1000000, 2));
+    assertArrayEquals(new int[0], index.covering(4, 3));
+
+    index.remove(new Range(at("a1"), at("b10")), 1);
+    assertArrayEquals(new int[] {2, 3}, sorted(index.covering(4, 1)));
+    index.remove(new Range(at("a1"), at("b10")), 3);
+    index.remove(new Range(at("b5"), at("c1000000")), 2);
+    assertTrue(!index.covers(4, 1));
+  }
+
+  @Test
+  public void testIndexMatchesScan() throws InvalidSyntaxException {
+    Random random = new Random(21);
+    RangeIndex index = new RangeIndex();
+    List<Range> ranges = new ArrayList<>();
+    List<Integer> dependents = new ArrayList<>();
+    for (int step = 0; step < 2000; step++) {
+      if (ranges.isEmpty() || random.nextInt(3) > 0) {
+        int top = random.nextInt(200);
+        int left = random.nextInt(random.nextBoolean() ? 8 : 300);
+        int width = random.nextInt(4) * random.nextInt(60);
+        Range range = new Range(new CellLocation(top, left),
+            new CellLocation(top + random.nextInt(100), left + width));
+        int dependent = random.nextInt(50);
+        index.add(range, dependent);
+        ranges.add(range);
+        dependents.add(dependent);
+      } else {
+        int i = random.nextInt(ranges.size());
+        index.remove(ranges.remove(i), dependents.remove(i));
+      }
+      for (int probe = 0; probe < 5; probe++) {
+        int row = random.nextInt(320);
+        int column = random.nextInt(380);
+        List<Integer> expected = new ArrayList<>();
+        for (int i = 0; i < ranges.size(); i++) {
+          if (ranges.get(i).contains(new CellLocation(row, column))) {
+            expected.add(dependents.get(i));
+          }
+        }
+        int[] scanned = expected.stream().mapToInt(Integer::intValue).sorted().toArray();
+        assertArrayEquals(scanned, sorted(index.covering(row, column)));
+      }
+    }
+  }
+
+  private static int[] sorted(int[] values) {
+    int[] copy = values.clone();
+    Arrays.sort(copy);
+    return copy;
+  }
+
+  @Test
+  public void testClearStoredConstantInRange() throws InvalidSyntaxException {
+    Spreadsheet spreadsheet =
+        new Spreadsheet(Spreadsheet.EvaluationMode.EAGER, Spreadsheet.Storage.COLUMNS);
+    spreadsheet.setCellExpression(at("a1"), "7");
+    spreadsheet.setCellExpression(at("a2"), "2");
+    spreadsheet.setCellExpression(at("b1"), "sum(a1:a3)");
+    spreadsheet.setCellExpression(at("a1"), "");
+    assertEquals("", spreadsheet.getCellExpression(at("a1")));
+    assertEquals(2.0, spreadsheet.getCellValue(at("b1")), 0);
+  }
+
+  @Test
+  public void testCountSeesNewZero() throws InvalidSyntaxException {
+    for (Spreadsheet.EvaluationMode mode : Spreadsheet.EvaluationMode.values()) {
+      Spreadsheet spreadsheet = new Spreadsheet(mode);
+      spreadsheet.setCellExpression(at("a1"), "1");
+      spreadsheet.setCellExpression(at("b1"), "count(a1:a3)");
+      spreadsheet.setCellExpression(at("a2"), "0");
+      assertEquals(2.0, spreadsheet.getCellValue(at("b1")), 0);
+      spreadsheet.setCellExpression(at("a2"), "");
+      assertEquals(1.0, spreadsheet.getCellValue(at("b1")), 0);
+    }
+  }
+}
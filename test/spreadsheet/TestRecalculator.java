@@ -0,0 +1,231 @@
+package spreadsheet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import common.api.CellLocation;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+
+public class TestRecalculator {
+
+  private static final double TOLERANCE = 0.0001;
+
+  private static final CellLocation A1 = new CellLocation("a1");
+  private static final CellLocation C1 = new CellLocation("c1");
+
+  /**
+   * Builds the diamond a1 -> b1..b50 -> c1.
+   *
+   * @throws InvalidSyntaxException if a spurious parse error occurs.
+   */
+  private static Spreadsheet diamond() throws InvalidSyntaxException {
+    Spreadsheet spreadsheet = new Spreadsheet();
+    spreadsheet.setCellExpression(A1, "1");
+    StringBuilder sum = new StringBuilder("0");
+    for (int row = 1; row <= 50; row++) {
+      spreadsheet.setCellExpression(new CellLocation("b" + row), "a1 * " + row);
+      sum.append(" + b").append(row);
+    }
+    spreadsheet.setCellExpression(C1, sum.toString());
+    return spreadsheet;
+  }
+
+  /** Every cell of a diamond's cone appears once, and after all of its precedents. */
+  @Test
+  public void testDiamondOrder() throws InvalidSyntaxException {
+    Spreadsheet spreadsheet = diamond();
+    List<Cell> order = new Recalculator(spreadsheet).order(A1);
+
+    assertEquals(52, order.size());
+    assertEquals(52, new HashSet<>(order).size());
+    assertTrue(order.get(0) == spreadsheet.getCell(A1));
+    assertTrue(order.get(51) == spreadsheet.getCell(C1));
+  }
+
+  /** A diamond splits into the root, the fifty independent middle cells, and the sink. */
+  @Test
+  public void testDiamondLevels() throws InvalidSyntaxException {
+    Spreadsheet spreadsheet = diamond();
+    List<List<Cell>> levels = new Recalculator(spreadsheet).levels(A1);
+
+    assertEquals(3, levels.size());
+    assertEquals(1, levels.get(0).size());
+    assertEquals(50, levels.get(1).size());
+    assertEquals(1, levels.get(2).size());
+  }
+
+  /** Recalculating a wide cone on a pool gives the same values as the sequential path. */
+  @Test
+  public void testParallelMatchesSequential() throws InvalidSyntaxException {
+    Spreadsheet sequential = new Spreadsheet();
+    Spreadsheet parallel = new Spreadsheet();
+    ForkJoinPool pool = new ForkJoinPool(4);
+    parallel.setRecalculationPool(pool, 100);
+    try {
+      for (Spreadsheet spreadsheet : List.of(sequential, parallel)) {
+        for (int row = 1; row <= 5000; row++) {
+          spreadsheet.setCellExpression(new CellLocation("b" + row), "a1 * " + row + " / 7");
+          spreadsheet.setCellExpression(
+              new CellLocation("c" + row), "b" + row + " ^ 2 - b" + Math.max(1, row - 1));
+        }
+        spreadsheet.setCellExpression(A1, "3.5");
+      }
+      for (int row = 1; row <= 5000; row++) {
+        CellLocation location = new CellLocation("c" + row);
+        assertEquals(sequential.getCellValue(location), parallel.getCellValue(location), 0.0);
+      }
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  /** Counts the dirty cells that pool threads bring up to date while evaluating a level. */
+  private static class PoolWatchingSpreadsheet extends Spreadsheet {
+    final AtomicInteger pulls = new AtomicInteger();
+
+    @Override
+    public double getCellValue(CellLocation location) {
+      Cell c = getCell(location);
+      if (Thread.currentThread() instanceof ForkJoinWorkerThread && c != null && c.isDirty()) {
+        pulls.incrementAndGet();
+      }
+      return super.getCellValue(location);
+    }
+
+    @Override
+    void refresh(Cell c) {
+      if (Thread.currentThread() instanceof ForkJoinWorkerThread) {
+        pulls.incrementAndGet();
+      }
+      super.refresh(c);
+    }
+  }
+
+  /**
+   * A wide level that reads cells left dirty by an asynchronous edit has them refreshed before it
+   * is split over the pool, rather than by several pool threads at once.
+   */
+  @Test
+  public void testParallelLevelReadsDirtyCells() throws InvalidSyntaxException {
+    PoolWatchingSpreadsheet spreadsheet = new PoolWatchingSpreadsheet();
+    ForkJoinPool pool = new ForkJoinPool(4);
+    spreadsheet.setRecalculationPool(pool, 100);
+    Deque<Runnable> tasks = new ArrayDeque<>();
+    spreadsheet.setRecalculationExecutor(tasks::add);
+    try {
+      CellLocation d1 = new CellLocation("d1");
+      spreadsheet.setCellExpression(d1, "1");
+      for (int row = 1; row <= 10; row++) {
+        spreadsheet.setCellExpression(new CellLocation("f" + row), "d1 * " + row);
+      }
+      for (int row = 1; row <= 600; row++) {
+        spreadsheet.setCellExpression(new CellLocation("b" + row), "d1 * " + row);
+        spreadsheet.setCellExpression(
+            new CellLocation("c" + row), "a1 + b" + row + " + sum(f1:f10)");
+      }
+      spreadsheet.setCellExpressionAsync(d1, "2");
+      spreadsheet.setCellExpression(A1, "1");
+      assertEquals(0, spreadsheet.pulls.get());
+      for (int row = 1; row <= 600; row++) {
+        assertEquals(1 + 2 * row + 110, spreadsheet.getCellValue(new CellLocation("c" + row)),
+            TOLERANCE);
+      }
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  /** Propagation stops at a cell whose value does not change, and the skipped cells are counted. */
+  @Test
+  public void testEarlyCutoff() throws InvalidSyntaxException {
+    Spreadsheet spreadsheet = new Spreadsheet();
+    spreadsheet.setCellExpression(A1, "1");
+    spreadsheet.setCellExpression(new CellLocation("b1"), "a1 * 0");
+    spreadsheet.setCellExpression(new CellLocation("b2"), "a1 * 2");
+    for (int row = 1; row <= 100; row++) {
+      spreadsheet.setCellExpression(new CellLocation("c" + row), "b1 + b2 + " + row);
+    }
+    for (int row = 1; row <= 100; row++) {
+      spreadsheet.setCellExpression(new CellLocation("d" + row), "b1 + " + row);
+    }
+
+    long evaluations = spreadsheet.getEvaluationCount();
+    long skipped = spreadsheet.getSkippedEvaluationCount();
+    spreadsheet.setCellExpression(A1, "2");
+    // a1, b1, b2 and the c column are evaluated; the d column only reads b1, which stayed 0
+    assertEquals(103, spreadsheet.getEvaluationCount() - evaluations);
+    assertEquals(100, spreadsheet.getSkippedEvaluationCount() - skipped);
+    assertEquals(14.0, spreadsheet.getCellValue(new CellLocation("c10")), TOLERANCE);
+    assertEquals(10.0, spreadsheet.getCellValue(new CellLocation("d10")), TOLERANCE);
+
+    // an edit that leaves the value as it was stops at the edited cell
+    evaluations = spreadsheet.getEvaluationCount();
+    spreadsheet.setCellExpression(A1, "1 + 1");
+    assertEquals(1, spreadsheet.getEvaluationCount() - evaluations);
+  }
+
+  /** Editing the root of a diamond updates the shared descendant. */
+  @Test
+  public void testDiamondValues() throws InvalidSyntaxException {
+    Spreadsheet spreadsheet = diamond();
+    assertEquals(1275.0, spreadsheet.getCellValue(C1), TOLERANCE);
+
+    spreadsheet.setCellExpression(A1, "2");
+    assertEquals(2550.0, spreadsheet.getCellValue(C1), TOLERANCE);
+  }
+
+  /**
+   * Forty fully connected layers of two cells each have 2^40 paths from the root, which is only
+   * feasible if every cell is evaluated once per edit. The layers are filled in bottom-up so that
+   * cycle detection never has to walk the paths either.
+   */
+  @Test(timeout = 10000)
+  public void testLayeredDiamonds() throws InvalidSyntaxException {
+    Spreadsheet spreadsheet = new Spreadsheet();
+    for (int row = 40; row >= 2; row--) {
+      String previous = "a" + (row - 1) + " + b" + (row - 1);
+      spreadsheet.setCellExpression(new CellLocation("a" + row), previous);
+      spreadsheet.setCellExpression(new CellLocation("b" + row), previous);
+    }
+    spreadsheet.setCellExpression(new CellLocation("a1"), "1");
+    spreadsheet.setCellExpression(new CellLocation("b1"), "1");
+    assertEquals(Math.pow(2, 39), spreadsheet.getCellValue(new CellLocation("a40")), TOLERANCE);
+
+    spreadsheet.setCellExpression(A1, "3");
+    assertEquals(2 * Math.pow(2, 39), spreadsheet.getCellValue(new CellLocation("a40")), TOLERANCE);
+
+    Set<Cell> cone = new HashSet<>(new Recalculator(spreadsheet).order(A1));
+    assertEquals(79, cone.size());
+  }
+
+  /**
+   * A running-balance column a million rows deep: editing its head must recalculate the whole
+   * chain, and closing it into a loop must be rejected, without overflowing the stack.
+   */
+  @Test
+  public void testMillionDeepChain() throws InvalidSyntaxException {
+    int depth = 1_000_000;
+    Spreadsheet spreadsheet = new Spreadsheet();
+    spreadsheet.setCellExpression(A1, "0");
+    for (int row = 2; row <= depth; row++) {
+      spreadsheet.setCellExpression(new CellLocation("a" + row), "a" + (row - 1) + " + 1");
+    }
+    CellLocation tail = new CellLocation("a" + depth);
+    assertEquals(depth - 1, spreadsheet.getCellValue(tail), TOLERANCE);
+
+    spreadsheet.setCellExpression(A1, "5");
+    assertEquals(depth + 4, spreadsheet.getCellValue(tail), TOLERANCE);
+
+    spreadsheet.setCellExpression(A1, "a" + depth);
+    assertEquals("5.0", spreadsheet.getCellExpression(A1));
+    assertEquals(depth + 4, spreadsheet.getCellValue(tail), TOLERANCE);
+  }
+}
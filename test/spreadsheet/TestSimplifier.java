@@ -0,0 +1,80 @@
+package spreadsheet;
+
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertThat;
+import static spreadsheet.EvaluationMatcher.evaluatesTo;
+import static spreadsheet.TokensMatcher.matchesTokens;
+
+import common.api.CellLocation;
+import common.api.Expression;
+import java.util.HashSet;
+import java.util.Set;
+import org.junit.Test;
+
+public class TestSimplifier {
+
+  private static Expression body(String input) throws InvalidSyntaxException {
+    Expression parsed = Parser.parse(input);
+    return parsed instanceof Formula formula ? formula.getBody() : parsed;
+  }
+
+  @Test
+  public void testConstantFolding() throws InvalidSyntaxException {
+    assertThat(body("(2 * 3600) * 4"), instanceOf(Numbers.class));
+    assertThat(body("1 + 2 ^ 3"), evaluatesTo(9));
+    assertThat(body("(2 * 3600) * a1 + 0").toString(), matchesTokens("(7200 * a1)"));
+    assertThat(body("a1 + 2 * 3").toString(), matchesTokens("(a1 + 6)"));
+  }
+
+  @Test
+  public void testIdentities() throws InvalidSyntaxException {
+    assertThat(body("a1 * 1").toString(), matchesTokens("a1"));
+    assertThat(body("1 * a1").toString(), matchesTokens("a1"));
+    assertThat(body("0 + a1").toString(), matchesTokens("a1"));
+    assertThat(body("a1 - 0").toString(), matchesTokens("a1"));
+    assertThat(body("a1 / (3 - 2)").toString(), matchesTokens("a1"));
+    assertThat(body("a1 ^ 1").toString(), matchesTokens("a1"));
+    // neither side is an identity of the operator here
+    assertThat(body("0 - a1").toString(), matchesTokens("(0 - a1)"));
+    assertThat(body("1 / a1").toString(), matchesTokens("(1 / a1)"));
+  }
+
+  @Test
+  public void testParenthesesRemoved() throws InvalidSyntaxException {
+    Expression body = body("((a1 + b1)) * (c1)");
+    assertThat(body, instanceOf(BinApp.class));
+    assertThat(((BinApp) body).getLeft(), instanceOf(BinApp.class));
+    assertThat(((BinApp) body).getRight(), instanceOf(CellReferences.class));
+  }
+
+  @Test
+  public void testReferencesKept() throws InvalidSyntaxException {
+    Set<String> result = new HashSet<>();
+    for (CellLocation cell : Parser.parse("a1 * 0 + b1 ^ 0 + (c1 - c1)").getCellReferences()) {
+      result.add(cell.toString());
+    }
+    assertThat(result, containsInAnyOrder("a1", "b1", "c1"));
+  }
+
+  @Test
+  public void testUnchangedTreeNotWrapped() throws InvalidSyntaxException {
+    Expression parsed = Parser.parse("a1 + b1 * 2");
+    assertThat(parsed, instanceOf(BinApp.class));
+    assertSame(parsed, Simplifier.simplify(parsed));
+  }
+
+  @Test
+  public void testExpressionUnchanged() throws InvalidSyntaxException {
+    Spreadsheet spreadsheet = new Spreadsheet();
+    CellLocation a1 = new CellLocation("a1");
+    CellLocation b1 = new CellLocation("b1");
+    spreadsheet.setCellExpression(a1, "3");
+    spreadsheet.setCellExpression(b1, "(2 * 3600) * a1 + 0");
+
+    assertThat(spreadsheet.getCellExpression(b1), matchesTokens("((((2 * 3600)) * a1) + 0)"));
+    assertEquals(21600, spreadsheet.getCellValue(b1), 0.0001);
+  }
+}
@@ -0,0 +1,124 @@
+package spreadsheet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import common.api.BasicSpreadsheet;
+import common.api.CellLocation;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.Test;
+
+public class TestSnapshot {
+
+  private static CellLocation at(String location) {
+    return new CellLocation(location);
+  }
+
+  @Test
+  public void testSnapshotIgnoresLaterEdits() throws InvalidSyntaxException {
+    for (Spreadsheet.EvaluationMode mode : Spreadsheet.EvaluationMode.values()) {
+      for (Spreadsheet.Storage storage : Spreadsheet.Storage.values()) {
+        Spreadsheet spreadsheet = new Spreadsheet(mode, storage);
+        spreadsheet.setCellExpression(at("a1"), "1");
+        spreadsheet.setCellExpression(at("a2"), "2");
+        spreadsheet.setCellExpression(at("a3"), "3");
+        spreadsheet.setCellExpression(at("b1"), "a1 * 10");
+        spreadsheet.setCellExpression(at("b2"), "sum(a1:a3)");
+        String formula = spreadsheet.getCellExpression(at("b1"));
+        BasicSpreadsheet snapshot = spreadsheet.snapshot();
+
+        spreadsheet.setCellExpression(at("a1"), "5");
+        spreadsheet.setCellExpression(at("a2"), "");
+        spreadsheet.setCellExpression(at("a3"), "30");
+        spreadsheet.setCellExpression(at("b1"), "a3 + 1");
+        spreadsheet.setCellExpression(at("c1"), "7");
+        assertEquals(31.0, spreadsheet.getCellValue(at("b1")), 0);
+        assertEquals(35.0, spreadsheet.getCellValue(at("b2")), 0);
+
+        assertEquals(1.0, snapshot.getCellValue(at("a1")), 0);
+        assertEquals("2.0", snapshot.getCellDisplay(at("a2")));
+        assertEquals(3.0, snapshot.getCellValue(at("a3")), 0);
+        assertEquals(10.0, snapshot.getCellValue(at("b1")), 0);
+        assertEquals(formula, snapshot.getCellExpression(at("b1")));
+        assertEquals(6.0, snapshot.getCellValue(at("b2")), 0);
+        assertEquals("", snapshot.getCellDisplay(at("c1")));
+        Set<CellLocation> references = new HashSet<>();
+        snapshot.findCellReferences(at("b1"), references);
+        assertEquals(Set.of(at("a1")), references);
+
+        BasicSpreadsheet later = spreadsheet.snapshot();
+        assertEquals(31.0, later.getCellValue(at("b1")), 0);
+        assertEquals("", later.getCellExpression(at("a2")));
+        assertEquals(7.0, later.getCellValue(at("c1")), 0);
+      }
+    }
+  }
+
+  @Test(expected = UnsupportedOperationException.class)
+  public void testReadOnly() throws InvalidSyntaxException {
+    new Spreadsheet().snapshot().setCellExpression(at("a1"), "1");
+  }
+
+  @Test(timeout = 60000)
+  public void testOldVersionsReclaimed() throws Exception {
+    Spreadsheet spreadsheet = new Spreadsheet();
+    spreadsheet.setCellExpression(at("a1"), "1");
+    BasicSpreadsheet snapshot = spreadsheet.snapshot();
+    spreadsheet.setCellExpression(at("a1"), "2");
+    spreadsheet.setCellExpression(at("a1"), "3");
+    assertEquals(1, spreadsheet.getRecordedLocationCount());
+    assertEquals(1.0, snapshot.getCellValue(at("a1")), 0);
+
+    snapshot = null;
+    int edit = 4;
+    while (spreadsheet.getRecordedLocationCount() > 0) {
+      System.gc();
+      Thread.sleep(10);
+      spreadsheet.setCellExpression(at("a1"), Integer.toString(edit++));
+    }
+    // With no snapshot left, edits stop recording.
+    spreadsheet.setCellExpression(at("a2"), "1");
+    assertEquals(0, spreadsheet.getRecordedLocationCount());
+  }
+
+  @Test(timeout = 60000)
+  public void testConsistentDuringEdits() throws Exception {
+    Spreadsheet spreadsheet = new Spreadsheet();
+    for (int row = 1; row <= 50; row++) {
+      spreadsheet.setCellExpression(at("a" + row), Integer.toString(row));
+    }
+    spreadsheet.setCellExpression(at("b1"), "sum(a1:a50)");
+    AtomicBoolean done = new AtomicBoolean();
+    AtomicReference<Throwable> failure = new AtomicReference<>();
+    Thread reader = new Thread(() -> {
+      try {
+        while (!done.get()) {
+          BasicSpreadsheet snapshot = spreadsheet.snapshot();
+          double sum = 0;
+          for (int row = 1; row <= 50; row++) {
+            sum += snapshot.getCellValue(at("a" + row));
+          }
+          assertEquals(sum, snapshot.getCellValue(at("b1")), 0);
+        }
+      } catch (Throwable t) {
+        failure.set(t);
+      }
+    });
+    reader.start();
+    Random random = new Random(20);
+    for (int edit = 0; edit < 2000; edit++) {
+      spreadsheet.setCellExpression(at("a" + (1 + random.nextInt(50))),
+          Integer.toString(random.nextInt(1000)));
+    }
+    done.set(true);
+    reader.join();
+    if (failure.get() != null) {
+      throw new AssertionError(failure.get());
+    }
+    assertTrue(spreadsheet.getCellValue(at("b1")) > 0);
+  }
+}
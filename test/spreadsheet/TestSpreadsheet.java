@@ -1,10 +1,18 @@
 package spreadsheet;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import static spreadsheet.TokensMatcher.matchesTokens;
 
 import common.api.CellLocation;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import org.junit.Test;
 
 public class TestSpreadsheet {
@@ -120,6 +128,26 @@ public class TestSpreadsheet {
     assertThat(spreadsheet.getCellExpression(A1), matchesTokens("(b1 * 2)"));
   }
 
+  /**
+   * Tests that a rejected cyclic edit leaves the cell exactly as it was and recalculates nothing.
+   *
+   * @throws InvalidSyntaxException if any spurious parser failures happen.
+   */
+  @Test
+  public void testRejectedEditIsUntouched() throws InvalidSyntaxException {
+    Spreadsheet spreadsheet = new Spreadsheet();
+    spreadsheet.setCellExpression(A1, "(b1 + 1) * 2");
+    spreadsheet.setCellExpression(B1, "3");
+    String expression = spreadsheet.getCellExpression(B1);
+    long evaluations = spreadsheet.getEvaluationCount();
+
+    spreadsheet.setCellExpression(B1, "a1 - 1");
+    spreadsheet.setCellExpression(B1, "a1 - 1");
+    assertEquals(expression, spreadsheet.getCellExpression(B1));
+    assertEquals(evaluations, spreadsheet.getEvaluationCount());
+    assertEquals(8.0, spreadsheet.getCellValue(A1), TOLERANCE);
+  }
+
   /**
    * Tests that the example of uncreated spreadsheet dependencies works properly.
    *
@@ -180,4 +208,177 @@ public class TestSpreadsheet {
     assertEquals(3.0, spreadsheet.getCellValue(B2), TOLERANCE);
     assertEquals(6.0, spreadsheet.getCellValue(C2), TOLERANCE);
   }
+
+  /**
+   * Tests that a lazy spreadsheet only evaluates the cells that are read, and only once per edit.
+   *
+   * @throws InvalidSyntaxException if any spurious parser failures happen.
+   */
+  @Test
+  public void testLazyEvaluation() throws InvalidSyntaxException {
+    Spreadsheet spreadsheet = new Spreadsheet(Spreadsheet.EvaluationMode.LAZY);
+
+    spreadsheet.setCellExpression(A1, "8.0");
+    spreadsheet.setCellExpression(A2, "A1");
+    spreadsheet.setCellExpression(B2, "A1 + A2");
+    spreadsheet.setCellExpression(C2, "A1 + A2 + B2");
+    assertTrue(spreadsheet.getCell(C2).isDirty());
+
+    // reading B2 pulls its precedents up to date but leaves C2 alone
+    assertEquals(16.0, spreadsheet.getCellValue(B2), TOLERANCE);
+    assertFalse(spreadsheet.getCell(A1).isDirty());
+    assertFalse(spreadsheet.getCell(A2).isDirty());
+    assertTrue(spreadsheet.getCell(C2).isDirty());
+    assertThat(spreadsheet.getCellDisplay(C2), matchesTokens("32"));
+
+    spreadsheet.setCellExpression(A1, "1.0");
+    assertTrue(spreadsheet.getCell(A2).isDirty());
+    assertTrue(spreadsheet.getCell(C2).isDirty());
+    assertEquals(4.0, spreadsheet.getCellValue(C2), TOLERANCE);
+    assertEquals(2.0, spreadsheet.getCellValue(B2), TOLERANCE);
+
+    // rejected cycles leave the sheet as it was
+    spreadsheet.setCellExpression(A1, "C2");
+    assertThat(spreadsheet.getCellExpression(A1), matchesTokens("1.0"));
+    assertEquals(4.0, spreadsheet.getCellValue(C2), TOLERANCE);
+  }
+
+  /**
+   * Tests that pulling a value through a long dirty chain does not recurse per cell.
+   *
+   * @throws InvalidSyntaxException if any spurious parser failures happen.
+   */
+  @Test
+  public void testLazyDeepChain() throws InvalidSyntaxException {
+    Spreadsheet spreadsheet = new Spreadsheet(Spreadsheet.EvaluationMode.LAZY);
+    int depth = 100_000;
+    spreadsheet.setCellExpression(A1, "0");
+    for (int row = 2; row <= depth; row++) {
+      spreadsheet.setCellExpression(new CellLocation("a" + row), "a" + (row - 1) + " + 1");
+    }
+    spreadsheet.setCellExpression(A1, "1");
+    assertEquals(depth, spreadsheet.getCellValue(new CellLocation("a" + depth)), TOLERANCE);
+  }
+
+  /**
+   * Tests that a batch of edits is recalculated once, whatever order the edits arrive in.
+   *
+   * @throws InvalidSyntaxException if any spurious parser failures happen.
+   */
+  @Test
+  public void testBatchEdit() throws InvalidSyntaxException {
+    Spreadsheet spreadsheet = new Spreadsheet();
+    Map<CellLocation, String> edits = new LinkedHashMap<>();
+    edits.put(C2, "A1 + A2 + B2");
+    edits.put(B2, "A1 + A2");
+    edits.put(A2, "A1");
+    edits.put(A1, "8.0");
+
+    assertTrue(spreadsheet.setCellExpressions(edits));
+    assertEquals(4, spreadsheet.getEvaluationCount());
+    assertEquals(8.0, spreadsheet.getCellValue(A2), TOLERANCE);
+    assertEquals(16.0, spreadsheet.getCellValue(B2), TOLERANCE);
+    assertEquals(32.0, spreadsheet.getCellValue(C2), TOLERANCE);
+  }
+
+  /**
+   * Tests that a batch with a syntax error or a cycle changes nothing.
+   *
+   * @throws InvalidSyntaxException if any spurious parser failures happen.
+   */
+  @Test
+  public void testBatchRollback() throws InvalidSyntaxException {
+    Spreadsheet spreadsheet = new Spreadsheet();
+    spreadsheet.setCellExpression(A1, "1");
+    spreadsheet.setCellExpression(B1, "A1 + 1");
+
+    // each edit is fine on its own, but together they form a cycle
+    Map<CellLocation, String> edits = new HashMap<>();
+    edits.put(A1, "B2");
+    edits.put(B2, "B1 * 2");
+    assertFalse(spreadsheet.setCellExpressions(edits));
+    assertThat(spreadsheet.getCellExpression(A1), matchesTokens("1.0"));
+    assertEquals("", spreadsheet.getCellExpression(B2));
+    assertEquals(2.0, spreadsheet.getCellValue(B1), TOLERANCE);
+
+    edits.put(A1, "5");
+    edits.put(B2, "2 $ 3");
+    try {
+      spreadsheet.setCellExpressions(edits);
+      fail("expected a syntax error");
+    } catch (InvalidSyntaxException e) {
+      // expected
+    }
+    assertThat(spreadsheet.getCellExpression(A1), matchesTokens("1.0"));
+    assertEquals(2.0, spreadsheet.getCellValue(B1), TOLERANCE);
+
+    // the detector must still pick up cycles that go through a cell outside the batch
+    edits.clear();
+    edits.put(A1, "B1");
+    assertFalse(spreadsheet.setCellExpressions(edits));
+    assertEquals(2.0, spreadsheet.getCellValue(B1), TOLERANCE);
+  }
+
+  /**
+   * Tests a batch that clears a cell and rewrites its only reader, which drops the cleared cell.
+   *
+   * @throws InvalidSyntaxException if any spurious parser failures happen.
+   */
+  @Test
+  public void testBatchClearsReadCell() throws InvalidSyntaxException {
+    // Both ways round, as the batch is applied in whatever order its map gives.
+    CellLocation[][] pairs = {{A1, B1}, {B1, A1}, {A2, C2}, {C2, A2}};
+    for (Spreadsheet.EvaluationMode mode : Spreadsheet.EvaluationMode.values()) {
+      for (CellLocation[] pair : pairs) {
+        CellLocation read = pair[0];
+        CellLocation reader = pair[1];
+        Spreadsheet spreadsheet = new Spreadsheet(mode);
+        spreadsheet.setCellExpression(read, "5");
+        spreadsheet.setCellExpression(reader, read.toString());
+        Map<CellLocation, String> edits = new HashMap<>();
+        edits.put(read, "");
+        edits.put(reader, "1");
+        assertTrue(spreadsheet.setCellExpressions(edits));
+        assertEquals("", spreadsheet.getCellExpression(read));
+        assertEquals(1.0, spreadsheet.getCellValue(reader), TOLERANCE);
+        assertNull(spreadsheet.getCell(read));
+
+        spreadsheet.setCellExpression(read, "3");
+        spreadsheet.setCellExpression(reader, read + " * 2");
+        assertEquals(6.0, spreadsheet.getCellValue(reader), TOLERANCE);
+      }
+    }
+  }
+
+  /** Tests that reading empty cells does not create them, and cleared cells are dropped. */
+  @Test
+  public void testSparseCells() throws Exception {
+    Spreadsheet spreadsheet = new Spreadsheet();
+    assertEquals(0, spreadsheet.getCellValue(C2), TOLERANCE);
+    assertEquals("", spreadsheet.getCellExpression(C2));
+    assertEquals("", spreadsheet.getCellDisplay(C2));
+    assertNull(spreadsheet.getCell(C2));
+
+    // references to empty cells are remembered without creating the cells
+    spreadsheet.setCellExpression(B1, "a1 + a2");
+    assertNull(spreadsheet.getCell(A1));
+    assertEquals(0, spreadsheet.getCellValue(B1), TOLERANCE);
+    spreadsheet.setCellExpression(A1, "2");
+    assertEquals(2, spreadsheet.getCellValue(B1), TOLERANCE);
+
+    // a cleared cell is kept while it is referenced, and dropped once it is not
+    spreadsheet.setCellExpression(A1, "");
+    assertNotNull(spreadsheet.getCell(A1));
+    assertEquals(0, spreadsheet.getCellValue(B1), TOLERANCE);
+    spreadsheet.setCellExpression(B1, "a2 * 3");
+    assertNull(spreadsheet.getCell(A1));
+    spreadsheet.setCellExpression(A2, "4");
+    assertEquals(12, spreadsheet.getCellValue(B1), TOLERANCE);
+    spreadsheet.setCellExpression(B1, "");
+    assertNull(spreadsheet.getCell(B1));
+    assertNotNull(spreadsheet.getCell(A2));
+
+    spreadsheet.setCellExpression(C2, "");
+    assertNull(spreadsheet.getCell(C2));
+  }
 }
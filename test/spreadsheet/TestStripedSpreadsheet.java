@@ -0,0 +1,109 @@
+package spreadsheet;
+
+import static org.junit.Assert.assertEquals;
+
+import common.api.CellLocation;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.Test;
+
+public class TestStripedSpreadsheet {
+
+  private static CellLocation at(String location) {
+    return new CellLocation(location);
+  }
+
+  @Test
+  public void testRegionsMergeOnCrossReference() throws InvalidSyntaxException {
+    StripedSpreadsheet spreadsheet = new StripedSpreadsheet(
+        Spreadsheet.EvaluationMode.EAGER, Spreadsheet.Storage.COLUMNS, 10, 2);
+    spreadsheet.setCellExpression(at("a1"), "1");
+    spreadsheet.setCellExpression(at("b2"), "a1 + 1");
+    spreadsheet.setCellExpression(at("c1"), "5");
+    spreadsheet.setCellExpression(at("a11"), "7");
+    assertEquals(3, spreadsheet.getRegionCount());
+    assertEquals(0.0, spreadsheet.getCellValue(at("z99")), 0);
+    assertEquals("", spreadsheet.getCellDisplay(at("z99")));
+
+    spreadsheet.setCellExpression(at("d5"), "b2 + c1");
+    assertEquals(2, spreadsheet.getRegionCount());
+    assertEquals(7.0, spreadsheet.getCellValue(at("d5")), 0);
+    spreadsheet.setCellExpression(at("a1"), "10");
+    assertEquals(16.0, spreadsheet.getCellValue(at("d5")), 0);
+
+    spreadsheet.setCellExpression(at("a12"), "sum(a1:a3)");
+    assertEquals(1, spreadsheet.getRegionCount());
+    assertEquals(10.0, spreadsheet.getCellValue(at("a12")), 0);
+    assertEquals("7.0", spreadsheet.getCellDisplay(at("a11")));
+  }
+
+  @Test
+  public void testMatchesSpreadsheet() throws InvalidSyntaxException {
+    for (Spreadsheet.EvaluationMode mode : Spreadsheet.EvaluationMode.values()) {
+      Spreadsheet plain = new Spreadsheet(mode, Spreadsheet.Storage.CELLS);
+      StripedSpreadsheet striped =
+          new StripedSpreadsheet(mode, Spreadsheet.Storage.CELLS, 4, 1);
+      Random random = new Random(21);
+      for (int edit = 0; edit < 300; edit++) {
+        CellLocation location = new CellLocation(random.nextInt(20), random.nextInt(4));
+        String input;
+        switch (random.nextInt(4)) {
+          case 0:
+            input = Integer.toString(random.nextInt(100));
+            break;
+          case 1:
+            input = "";
+            break;
+          default:
+            input = new CellLocation(random.nextInt(20), random.nextInt(4)) + " + 1";
+        }
+        plain.setCellExpression(location, input);
+        striped.setCellExpression(location, input);
+      }
+      for (int row = 0; row < 20; row++) {
+        for (int column = 0; column < 4; column++) {
+          CellLocation location = new CellLocation(row, column);
+          assertEquals(plain.getCellValue(location), striped.getCellValue(location), 0);
+          assertEquals(plain.getCellExpression(location), striped.getCellExpression(location));
+        }
+      }
+    }
+  }
+
+  @Test(timeout = 60000)
+  public void testDisjointWriters() throws Exception {
+    StripedSpreadsheet spreadsheet = new StripedSpreadsheet(
+        Spreadsheet.EvaluationMode.EAGER, Spreadsheet.Storage.CELLS, 100, 1);
+    AtomicReference<Throwable> failure = new AtomicReference<>();
+    List<Thread> writers = new ArrayList<>();
+    for (int column = 0; column < 4; column++) {
+      String name = CellLocation.getColumnName(column);
+      writers.add(new Thread(() -> {
+        try {
+          for (int row = 2; row <= 100; row++) {
+            spreadsheet.setCellExpression(at(name + row), name + (row - 1) + " + 1");
+          }
+          for (int value = 1; value <= 50; value++) {
+            spreadsheet.setCellExpression(at(name + 1), Integer.toString(value));
+          }
+        } catch (Throwable t) {
+          failure.set(t);
+        }
+      }));
+    }
+    writers.forEach(Thread::start);
+    for (Thread writer : writers) {
+      writer.join();
+    }
+    if (failure.get() != null) {
+      throw new AssertionError(failure.get());
+    }
+    assertEquals(4, spreadsheet.getRegionCount());
+    for (int column = 0; column < 4; column++) {
+      assertEquals(149.0,
+          spreadsheet.getCellValue(at(CellLocation.getColumnName(column) + 100)), 0);
+    }
+  }
+}
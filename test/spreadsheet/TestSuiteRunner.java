@@ -9,12 +9,29 @@ public class TestSuiteRunner {
   public static void main(String[] args) {
     Result result =
         JUnitCore.runClasses(
+            spreadsheet.TestAsyncEdits.class,
             spreadsheet.TestCell.class,
+            spreadsheet.TestCellLocation.class,
+            spreadsheet.TestColumnStore.class,
+            spreadsheet.TestConcurrentReads.class,
             spreadsheet.TestCycleDetector.class,
+            spreadsheet.TestDependencyGraph.class,
+            spreadsheet.TestEditLoop.class,
             spreadsheet.TestEvaluation.class,
+            spreadsheet.TestExpressionCompiler.class,
+            spreadsheet.TestExpressionInterner.class,
             spreadsheet.TestFindCellReferences.class,
+            spreadsheet.TestLexer.class,
             spreadsheet.TestParser.class,
-            spreadsheet.TestSpreadsheet.class);
+            spreadsheet.TestPostfixProgram.class,
+            spreadsheet.TestRangeSummaries.class,
+            spreadsheet.TestRanges.class,
+            spreadsheet.TestRecalculator.class,
+            spreadsheet.TestSimplifier.class,
+            spreadsheet.TestSnapshot.class,
+            spreadsheet.TestSpreadsheet.class,
+            spreadsheet.TestStripedSpreadsheet.class,
+            spreadsheet.TestTopologicalOrder.class);
     for (Failure failure : result.getFailures()) {
       System.out.println(failure.toString());
     }
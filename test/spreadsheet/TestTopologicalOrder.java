@@ -0,0 +1,89 @@
+package spreadsheet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import common.api.CellLocation;
+import common.api.Expression;
+import java.util.Random;
+import org.junit.Test;
+
+public class TestTopologicalOrder {
+
+  private static final CellLocation A1 = new CellLocation("a1");
+  private static final CellLocation A2 = new CellLocation("a2");
+  private static final CellLocation B1 = new CellLocation("b1");
+
+  /** Checks that every cell in the spreadsheet ranks below all of its dependents. */
+  private static void assertOrdered(Spreadsheet spreadsheet, int cells) {
+    for (int i = 0; i < cells; i++) {
+      Cell cell = spreadsheet.getCell(location(i));
+      if (cell == null) {
+        continue;
+      }
+      DependencyGraph graph = spreadsheet.getGraph();
+      for (int slot = 0; slot < graph.dependentSlots(cell.getId()); slot++) {
+        int dependent = graph.dependent(cell.getId(), slot);
+        if (dependent >= 0) {
+          assertTrue(cell.getRank() < graph.getCell(dependent).getRank());
+        }
+      }
+    }
+  }
+
+  private static CellLocation location(int i) {
+    return new CellLocation(i % 10, i / 10);
+  }
+
+  /** Tests that references to later cells are reordered, and cycles are refused. */
+  @Test
+  public void testReorder() throws InvalidSyntaxException {
+    Spreadsheet spreadsheet = new Spreadsheet();
+    spreadsheet.setCellExpression(A1, "1");
+    spreadsheet.setCellExpression(A2, "2");
+    spreadsheet.setCellExpression(B1, "3");
+    assertTrue(spreadsheet.getCell(A1).getRank() < spreadsheet.getCell(B1).getRank());
+
+    // a1 now has to move after both a2 and b1
+    spreadsheet.setCellExpression(A1, "a2 + b1");
+    assertTrue(spreadsheet.getCell(A2).getRank() < spreadsheet.getCell(A1).getRank());
+    assertTrue(spreadsheet.getCell(B1).getRank() < spreadsheet.getCell(A1).getRank());
+
+    spreadsheet.setCellExpression(B1, "a1");
+    assertEquals("3.0", spreadsheet.getCellExpression(B1));
+    assertEquals(5.0, spreadsheet.getCellValue(A1), 0.0);
+  }
+
+  /** Tests random edits against the full-walk cycle detector, keeping the order valid throughout. */
+  @Test
+  public void testRandomEdits() throws InvalidSyntaxException {
+    Random random = new Random(42);
+    int cells = 200;
+    Spreadsheet spreadsheet = new Spreadsheet();
+    CycleDetector detector = new CycleDetector(spreadsheet);
+    for (int edit = 0; edit < 3000; edit++) {
+      CellLocation target = location(random.nextInt(cells));
+      StringBuilder input = new StringBuilder("1");
+      for (int refs = random.nextInt(3); refs > 0; refs--) {
+        input.append(" + ").append(location(random.nextInt(cells)));
+      }
+      String before = spreadsheet.getCellExpression(target);
+      String parsed = Parser.parse(input.toString()).toString();
+
+      spreadsheet.setCellExpression(target, input.toString());
+      if (spreadsheet.getCellExpression(target).equals(parsed)) {
+        assertFalse(detector.hasCycleFrom(target));
+      } else {
+        // rejected: the cell is untouched, and the full-walk detector agrees it had to be
+        assertEquals(before, spreadsheet.getCellExpression(target));
+        Cell cell = spreadsheet.cellAt(target, false);
+        Expression kept = cell.getParsedExpression();
+        cell.setExpression(Parser.parse(parsed));
+        assertTrue(detector.hasCycleFrom(target));
+        cell.setExpression(kept);
+      }
+      assertOrdered(spreadsheet, cells);
+    }
+  }
+}